@@ -32,30 +32,41 @@ import hudson.FilePath.FileCallable;
 import hudson.Launcher;
 import hudson.Platform;
 import hudson.PluginWrapper;
-import hudson.Proc;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.remoting.Channel;
 import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
 import hudson.tasks.Shell;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.io.File;
+import java.net.URL;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import jenkins.model.Jenkins;
-import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.accmod.Restricted;
@@ -123,6 +134,22 @@ public final class BourneShellScript extends FileMonitoringTask {
     @SuppressWarnings("FieldMayBeFinal")
     private static int HEARTBEAT_MINIMUM_DELTA = Integer.getInteger(BourneShellScript.class.getName() + ".HEARTBEAT_MINIMUM_DELTA", 2);
 
+    /**
+     * Seconds for which to reuse what {@link GetAgentInfo} found on a given agent connection, or 0 to look before every launch.
+     * Entries are kept as properties of the {@link Channel}, so they are dropped anyway when the agent reconnects;
+     * the limit only guards against the cached binary being deleted behind our back.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long AGENT_INFO_CACHE_SECONDS = Long.getLong(BourneShellScript.class.getName() + ".AGENT_INFO_CACHE_SECONDS", 300);
+
+    /**
+     * Whether to prepare each agent for shell steps as soon as it comes online,
+     * rather than during the first step: looking up and caching agent information,
+     * installing the wrapper binary if {@link #FORCE_BINARY_WRAPPER} is set, and loading the callables used by controllers.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static boolean WARM_UP = Boolean.getBoolean(BourneShellScript.class.getName() + ".WARM_UP");
+
     private final @Nonnull String script;
     private boolean capturingOutput;
 
@@ -157,38 +184,50 @@ public final class BourneShellScript extends FileMonitoringTask {
         }
         final Jenkins jenkins = Jenkins.get();
 
-        PluginWrapper durablePlugin = jenkins.getPluginManager().getPlugin("durable-task");
-        if (durablePlugin == null) {
-            throw new IOException("Unable to find durable task plugin");
+        String pluginVersion = pluginVersion();
+        FilePath newControlDir = FileMonitoringController.newControlDir(ws);
+        if (newControlDir == null) {
+            throw new IOException("Unable to create a control directory for " + ws);
+        }
+        boolean shebang = script.startsWith("#!");
+        AgentInfo agentInfo = cachedAgentInfo(nodeRoot, pluginVersion);
+        String cachedBinary = null;
+        long cachedBinarySize = -1;
+        if (agentInfo != null && agentInfo.isCachingAvailable() && agentInfo.isBinaryCached()) {
+            // Cheaply make sure it has not been damaged or deleted since it was verified.
+            cachedBinary = nodeRoot.child(agentInfo.getBinaryPath()).getRemote();
+            BinaryResource resource = BinaryResource.get(nodeRoot.child(agentInfo.getBinaryPath()).getName());
+            if (resource != null) {
+                cachedBinarySize = resource.size;
+            }
+        }
+        // Set up all the files in one call to the agent.
+        LaunchPreparation preparation = ws.act(new PrepareLaunch(newControlDir.getRemote(), ShellController.scriptFile(newControlDir).getRemote(), script, shebang, agentInfo, agentInfo == null ? nodeRoot.getRemote() : null, pluginVersion, cachedBinary, cachedBinarySize));
+        if (agentInfo == null) {
+            agentInfo = preparation.agentInfo;
+            checkCachedBinary(nodeRoot, agentInfo);
+            cacheAgentInfo(nodeRoot, pluginVersion, agentInfo);
+        } else if (cachedBinary != null && !preparation.cachedBinaryIntact) {
+            LOGGER.log(Level.FINE, "cached {0} was damaged or deleted, will reinstall", cachedBinary);
+            agentInfo.setBinaryAvailability(false);
         }
-        String pluginVersion = StringUtils.substringBefore(durablePlugin.getVersion(), "-");
-        AgentInfo agentInfo = nodeRoot.act(new GetAgentInfo(pluginVersion));
 
         OsType os = agentInfo.getOs();
-        String scriptEncodingCharset = "UTF-8";
-        if(os == OsType.ZOS) {
-            Charset zOSSystemEncodingCharset = Charset.forName(ws.act(new getIBMzOsEncoding()));
-            if(SYSTEM_DEFAULT_CHARSET.equals(getCharset())) {
-                // Setting default charset to IBM z/OS default EBCDIC charset on z/OS if no encoding specified on sh step
-                charset(zOSSystemEncodingCharset);
-            }
-            scriptEncodingCharset = zOSSystemEncodingCharset.name();
+        if (os == OsType.ZOS && SYSTEM_DEFAULT_CHARSET.equals(getCharset())) {
+            // Setting default charset to IBM z/OS default EBCDIC charset on z/OS if no encoding specified on sh step
+            charset(Charset.forName(preparation.scriptEncoding));
         }
 
-        ShellController c = new ShellController(ws,(os == OsType.ZOS));
+        ShellController c = new ShellController(newControlDir.getRemote(), (os == OsType.ZOS));
         FilePath shf = c.getScriptFile(ws);
 
-        shf.write(script, scriptEncodingCharset);
-
         String shell = null;
-        if (!script.startsWith("#!")) {
+        if (!shebang) {
             shell = jenkins.getDescriptorByType(Shell.DescriptorImpl.class).getShell();
             if (shell == null) {
                 // Do not use getShellOrDefault, as that assumes that the filesystem layout of the agent matches that seen from a possibly decorated launcher.
                 shell = "sh";
             }
-        } else {
-            shf.chmod(0755);
         }
 
         String scriptPath = shf.getRemote();
@@ -205,19 +244,26 @@ public final class BourneShellScript extends FileMonitoringTask {
             } else {
                 binary = controlDir.child(agentInfo.getBinaryPath());
             }
-            try (InputStream binaryStream = DurableTask.class.getResourceAsStream(binary.getName())) {
-                if (binaryStream != null) {
-                    if (!agentInfo.isCachingAvailable() || !agentInfo.isBinaryCached()) {
-                        binary.copyFrom(binaryStream);
-                        binary.chmod(0755);
+            BinaryResource resource = BinaryResource.get(binary.getName());
+            if (resource != null) {
+                if (!agentInfo.isCachingAvailable()) {
+                    resource.install(binary);
+                } else if (!agentInfo.isBinaryCached()) {
+                    try {
+                        resource.install(binary);
+                        agentInfo.setBinaryAvailability(true); // for later launches reusing this info
+                    } catch (IOException x) {
+                        LOGGER.log(Level.WARNING, "could not install " + binary + "; copying into " + controlDir + " instead", x);
+                        binary = controlDir.child(binary.getName());
+                        resource.install(binary);
                     }
-                    launcherCmd = binaryLauncherCmd(c, ws, shell,
-                            controlDir.getRemote(),
-                            binary.getRemote(),
-                            scriptPath,
-                            cookieValue,
-                            cookieVariable);
                 }
+                launcherCmd = binaryLauncherCmd(c, ws, shell,
+                        controlDir.getRemote(),
+                        binary.getRemote(),
+                        scriptPath,
+                        cookieValue,
+                        cookieVariable);
             }
         }
         if (launcherCmd == null) {
@@ -230,15 +276,69 @@ public final class BourneShellScript extends FileMonitoringTask {
             ps.stdout(listener);
             ps.start();
         } else {
-            ps.readStdout().readStderr(); // TODO RemoteLauncher.launch fails to check ps.stdout == NULL_OUTPUT_STREAM, so it creates a useless thread even if you never called stdout(…)
-            Proc p = ps.start();
-            // Make sure these stream will get closed later, to release their remote counterpart from the agent's ExportTable. See JENKINS-60960.
-            c.registerForCleanup(p.getStdout());
-            c.registerForCleanup(p.getStderr());
+            startWrapper(launcher, ps, c);
         }
         return c;
     }
 
+    private static String pluginVersion() throws IOException {
+        PluginWrapper durablePlugin = Jenkins.get().getPluginManager().getPlugin("durable-task");
+        if (durablePlugin == null) {
+            throw new IOException("Unable to find durable task plugin");
+        }
+        return StringUtils.substringBefore(durablePlugin.getVersion(), "-");
+    }
+
+    /**
+     * Marks a cached binary found by {@link GetAgentInfo} as unavailable unless it matches the bundled one.
+     */
+    private static void checkCachedBinary(FilePath nodeRoot, AgentInfo agentInfo) throws IOException {
+        if (agentInfo.isBinaryCached()) {
+            BinaryResource resource = BinaryResource.get(nodeRoot.child(agentInfo.getBinaryPath()).getName());
+            if (resource == null || !resource.digest.equals(agentInfo.getBinaryDigest())) {
+                LOGGER.log(Level.FINE, "cached {0} does not match, will reinstall", agentInfo.getBinaryPath());
+                agentInfo.setBinaryAvailability(false);
+            }
+        }
+    }
+
+    /**
+     * Looks for the result of {@link GetAgentInfo} from an earlier launch on the same agent connection.
+     * @return the cached info, or null if it needs to be looked up
+     */
+    private static @CheckForNull AgentInfo cachedAgentInfo(FilePath nodeRoot, String pluginVersion) {
+        VirtualChannel channel = nodeRoot.getChannel();
+        if (!(channel instanceof Channel) || AGENT_INFO_CACHE_SECONDS <= 0) {
+            return null;
+        }
+        Object cached = ((Channel) channel).getProperty(agentInfoKey(nodeRoot, pluginVersion));
+        if (cached instanceof CachedAgentInfo && System.nanoTime() - ((CachedAgentInfo) cached).timestamp < TimeUnit.SECONDS.toNanos(AGENT_INFO_CACHE_SECONDS)) {
+            return ((CachedAgentInfo) cached).agentInfo;
+        }
+        return null;
+    }
+
+    private static void cacheAgentInfo(FilePath nodeRoot, String pluginVersion, AgentInfo agentInfo) {
+        VirtualChannel channel = nodeRoot.getChannel();
+        if (channel instanceof Channel && AGENT_INFO_CACHE_SECONDS > 0) {
+            ((Channel) channel).setProperty(agentInfoKey(nodeRoot, pluginVersion), new CachedAgentInfo(agentInfo, System.nanoTime()));
+        }
+    }
+
+    private static String agentInfoKey(FilePath nodeRoot, String pluginVersion) {
+        return AgentInfo.class.getName() + ":" + pluginVersion + ":" + nodeRoot.getRemote();
+    }
+
+    private static final class CachedAgentInfo {
+        final AgentInfo agentInfo;
+        /** {@link System#nanoTime} when looked up. */
+        final long timestamp;
+        CachedAgentInfo(AgentInfo agentInfo, long timestamp) {
+            this.agentInfo = agentInfo;
+            this.timestamp = timestamp;
+        }
+    }
+
     @Nonnull
     private List<String> binaryLauncherCmd(ShellController c, FilePath ws, @Nullable String shell,
                                            String controlDirPath, String binaryPath, String scriptPath,
@@ -333,13 +433,17 @@ public final class BourneShellScript extends FileMonitoringTask {
         /** Caching zOS flag to avoid round trip calls in exitStatus()         */
         private final boolean isZos;
 
-        private ShellController(FilePath ws, boolean zOsFlag) throws IOException, InterruptedException {
-            super(ws);
+        private ShellController(String controlDir, boolean zOsFlag) {
+            super(controlDir);
             this.isZos = zOsFlag;
         }
 
         public FilePath getScriptFile(FilePath ws) throws IOException, InterruptedException {
-            return controlDir(ws).child("script.sh");
+            return scriptFile(controlDir(ws));
+        }
+
+        static FilePath scriptFile(FilePath controlDir) {
+            return controlDir.child("script.sh");
         }
 
         /** Only here for compatibility. */
@@ -347,16 +451,16 @@ public final class BourneShellScript extends FileMonitoringTask {
             return controlDir(ws).child("pid");
         }
 
-        @Override protected Integer exitStatus(FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
-            Integer status;
-            if(isZos) {
+        @Override protected MasterToSlaveFileCallable<Integer> statusCheck() {
+            if (isZos) {
                 // We need to transcode status file from EBCDIC only on z/OS platform
-                FilePath statusFile = getResultFile(workspace);
-                status = statusFile.act(new StatusCheckWithEncoding(getCharset()));
-            }
-            else {
-                status = super.exitStatus(workspace, listener);
+                return new StatusCheckWithEncoding(getCharset());
+            } else {
+                return super.statusCheck();
             }
+        }
+
+        @Override protected Integer exitStatus(FilePath workspace, TaskListener listener, Integer status, long logTimestamp) throws IOException, InterruptedException {
             if (status != null) {
                 LOGGER.log(Level.FINE, "found exit code {0} in {1}", new Object[] {status, controlDir});
                 return status;
@@ -367,7 +471,7 @@ public final class BourneShellScript extends FileMonitoringTask {
                 lastCheck = now;
             } else if (now > lastCheck + TimeUnit.SECONDS.toNanos(HEARTBEAT_CHECK_INTERVAL)) {
                 lastCheck = now;
-                long currentTimestamp = getLogFile(workspace).lastModified();
+                long currentTimestamp = logTimestamp != -1 ? logTimestamp : getLogFile(workspace).lastModified();
                 if (currentTimestamp == 0) {
                     listener.getLogger().println("process apparently never started in " + controlDir);
                     if (!LAUNCH_DIAGNOSTICS) {
@@ -411,13 +515,175 @@ public final class BourneShellScript extends FileMonitoringTask {
 
     }
 
+    @Restricted(NoExternalUse.class)
+    @Extension public static final class WarmUp extends ComputerListener {
+
+        @Override public void onOnline(Computer c, TaskListener listener) {
+            if (!WARM_UP) {
+                return;
+            }
+            // Do not hold up other listeners.
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    warmUp(c);
+                } catch (IOException | InterruptedException | RuntimeException x) {
+                    LOGGER.log(Level.FINE, "could not warm up " + c.getName(), x);
+                }
+            });
+        }
+
+        private static void warmUp(Computer c) throws IOException, InterruptedException {
+            Node node = c.getNode();
+            VirtualChannel channel = c.getChannel();
+            FilePath nodeRoot = node != null ? node.getRootPath() : null;
+            if (channel == null || nodeRoot == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            String pluginVersion = pluginVersion();
+            AgentInfo agentInfo = cachedAgentInfo(nodeRoot, pluginVersion);
+            boolean fresh = agentInfo == null;
+            if (fresh) {
+                agentInfo = nodeRoot.act(new GetAgentInfo(pluginVersion));
+                checkCachedBinary(nodeRoot, agentInfo);
+            }
+            if (FORCE_BINARY_WRAPPER && agentInfo.isBinaryCompatible() && agentInfo.isCachingAvailable() && !agentInfo.isBinaryCached()) {
+                FilePath binary = nodeRoot.child(agentInfo.getBinaryPath());
+                BinaryResource resource = BinaryResource.get(binary.getName());
+                if (resource != null) {
+                    resource.install(binary);
+                    agentInfo.setBinaryAvailability(true);
+                }
+            }
+            List<Class<?>> classes = new ArrayList<>(hotCallables());
+            classes.addAll(Arrays.asList(PrepareLaunch.class, LaunchPreparation.class, InstallBinary.class, StatusCheckWithEncoding.class));
+            channel.call(new PreloadClasses(classes));
+            if (fresh) {
+                cacheAgentInfo(nodeRoot, pluginVersion, agentInfo);
+            }
+            LOGGER.log(Level.FINE, "warmed up {0} in {1}ms", new Object[] {c.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        }
+
+    }
+
+    /**
+     * A wrapper binary bundled in this plugin.
+     */
+    private static final class BinaryResource {
+        private static final Map<String, Optional<BinaryResource>> RESOURCES = new ConcurrentHashMap<>();
+
+        /**
+         * Looks up a binary, computing its checksum the first time.
+         * @return null if there is no such binary bundled
+         */
+        static @CheckForNull BinaryResource get(String name) throws IOException {
+            Optional<BinaryResource> resource = RESOURCES.get(name);
+            if (resource == null) {
+                URL url = DurableTask.class.getResource(name);
+                if (url == null) {
+                    resource = Optional.empty();
+                } else {
+                    try (InputStream is = url.openStream(); CountingInputStream cis = new CountingInputStream(is)) {
+                        String digest = InstallBinary.digest(cis);
+                        resource = Optional.of(new BinaryResource(url, digest, cis.getByteCount()));
+                    }
+                }
+                RESOURCES.put(name, resource);
+            }
+            return resource.orElse(null);
+        }
+
+        final URL url;
+        /** SHA-256 in hex. */
+        final String digest;
+        final long size;
+
+        private BinaryResource(URL url, String digest, long size) {
+            this.url = url;
+            this.digest = digest;
+            this.size = size;
+        }
+
+        /**
+         * Copies the binary to a temporary file next to the destination and then verifies it and moves it into place.
+         * Concurrent installations thus never leave a partially written file at the destination,
+         * and a process already running an older copy is undisturbed.
+         */
+        void install(FilePath binary) throws IOException, InterruptedException {
+            FilePath tmp = binary.sibling(binary.getName() + "." + UUID.randomUUID() + ".tmp");
+            try (InputStream is = url.openStream()) {
+                tmp.copyFrom(is);
+            } catch (IOException | InterruptedException x) {
+                try {
+                    tmp.delete();
+                } catch (IOException x2) {
+                    x.addSuppressed(x2);
+                }
+                throw x;
+            }
+            binary.act(new InstallBinary(tmp.getName(), digest));
+        }
+    }
+
+    /**
+     * Verifies a freshly copied binary against a checksum, makes it executable, and renames it over the destination.
+     */
+    private static final class InstallBinary extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String tmpName;
+        private final String digest;
+
+        InstallBinary(String tmpName, String digest) {
+            this.tmpName = tmpName;
+            this.digest = digest;
+        }
+
+        @Override public Void invoke(File binary, VirtualChannel channel) throws IOException, InterruptedException {
+            File tmp = new File(binary.getParentFile(), tmpName);
+            try {
+                String actual;
+                try (InputStream is = Files.newInputStream(tmp.toPath())) {
+                    actual = digest(is);
+                }
+                if (!actual.equals(digest)) {
+                    throw new IOException("Checksum mismatch in " + tmp + ": expected " + digest + " but got " + actual);
+                }
+                new FilePath(tmp).chmod(0755);
+                try {
+                    Files.move(tmp.toPath(), binary.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException x) {
+                    Files.move(tmp.toPath(), binary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            return null;
+        }
+
+        static String digest(InputStream is) throws IOException {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IOException(x);
+            }
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                md.update(buf, 0, n);
+            }
+            return Util.toHexString(md.digest());
+        }
+    }
+
     private static final class AgentInfo implements Serializable {
         private static final long serialVersionUID = 7599995179651071957L;
         private final OsType os;
         private final String binaryPath;
         private boolean binaryCompatible;
-        private boolean binaryCached;
+        private volatile boolean binaryCached;
         private boolean cachingAvailable;
+        private @CheckForNull String binaryDigest;
 
         public AgentInfo(OsType os, boolean binaryCompatible, String binaryPath, boolean cachingAvailable) {
             this.os = os;
@@ -447,17 +713,32 @@ public final class BourneShellScript extends FileMonitoringTask {
             return binaryCached;
         }
 
+        /**
+         * Checksum of the cached binary as found by {@link GetAgentInfo}, if it was there at all.
+         */
+        public @CheckForNull String getBinaryDigest() {
+            return binaryDigest;
+        }
+
         public boolean isCachingAvailable() {
             return cachingAvailable;
         }
     }
 
+    /** Number of times agent information has been looked up in this JVM, for tests. */
+    static int agentInfoLookups() {
+        return GetAgentInfo.invocations.get();
+    }
+
     private static final class GetAgentInfo implements FileCallable<AgentInfo> {
         private static final long serialVersionUID = 1L;
         private static final String BINARY_PREFIX = "durable_task_monitor_";
         private static final String CACHE_PATH = "caches/durable-task/";
         private String binaryVersion;
 
+        /** Number of lookups made in this JVM, for tests. */
+        static final AtomicInteger invocations = new AtomicInteger();
+
         private enum ArchBits {_32, _64}
 
         GetAgentInfo(String pluginVersion) {
@@ -466,6 +747,7 @@ public final class BourneShellScript extends FileMonitoringTask {
 
         @Override
         public AgentInfo invoke(File nodeRoot, VirtualChannel virtualChannel) throws IOException, InterruptedException {
+            invocations.incrementAndGet();
             OsType os;
             if (Platform.isDarwin()) {
                 os = OsType.DARWIN;
@@ -497,24 +779,41 @@ public final class BourneShellScript extends FileMonitoringTask {
             }
 
             String binaryName = BINARY_PREFIX + binaryVersion + "_" + os.getNameForBinary() + archBits;
-            String binaryPath;
-            boolean isCached;
-            boolean cachingAvailable;
-            try {
-                Path cachePath = Paths.get(nodeRoot.toPath().toString(), CACHE_PATH);
-                Files.createDirectories(cachePath);
-                File binaryFile = new File(cachePath.toFile(), binaryName);
-                binaryPath = binaryFile.toPath().toString();
-                isCached = binaryFile.exists();
-                cachingAvailable = true;
-            } catch (Exception e) {
-                // when the jenkins agent cache path is not accessible
-                binaryPath = binaryName;
-                isCached = false;
-                cachingAvailable = false;
+            String binaryPath = binaryName;
+            boolean isCached = false;
+            boolean cachingAvailable = false;
+            String binaryDigest = null;
+            for (Path cachePath : new Path[] {
+                Paths.get(nodeRoot.toPath().toString(), CACHE_PATH),
+                // fallback, private to this user
+                Paths.get(System.getProperty("java.io.tmpdir"), "durable-task-" + System.getProperty("user.name")),
+            }) {
+                try {
+                    Files.createDirectories(cachePath);
+                    if (!Files.isWritable(cachePath)) {
+                        throw new IOException(cachePath + " is not writable");
+                    }
+                    if (!cachePath.startsWith(nodeRoot.toPath()) && !Files.getOwner(cachePath).getName().equals(System.getProperty("user.name"))) {
+                        throw new IOException(cachePath + " is owned by someone else");
+                    }
+                    File binaryFile = new File(cachePath.toFile(), binaryName);
+                    binaryPath = binaryFile.toPath().toString();
+                    isCached = binaryFile.isFile();
+                    if (isCached) {
+                        try (InputStream is = Files.newInputStream(binaryFile.toPath())) {
+                            binaryDigest = InstallBinary.digest(is);
+                        }
+                    }
+                    cachingAvailable = true;
+                    break;
+                } catch (Exception e) {
+                    // when this cache path is not accessible
+                    LOGGER.log(Level.FINE, "cannot cache binary in " + cachePath, e);
+                }
             }
             AgentInfo agentInfo = new AgentInfo(os, binaryCompatible, binaryPath, cachingAvailable);
             agentInfo.setBinaryAvailability(isCached);
+            agentInfo.binaryDigest = binaryDigest;
             return agentInfo;
         }
 
@@ -524,12 +823,74 @@ public final class BourneShellScript extends FileMonitoringTask {
         }
     }
 
-    private static final class getIBMzOsEncoding extends MasterToSlaveCallable<String,RuntimeException> {
-        @Override public String call() throws RuntimeException {
-            // Not null on z/OS systems
-            return System.getProperty("ibm.system.encoding");
+    /**
+     * Creates the workspace and control directory and writes the script, all in one call to the agent.
+     * Also runs {@link GetAgentInfo} if that is not already known.
+     */
+    private static final class PrepareLaunch extends MasterToSlaveFileCallable<LaunchPreparation> {
+        private static final long serialVersionUID = 1L;
+        private final String controlDir;
+        /** As per {@link ShellController#getScriptFile}. */
+        private final String scriptFile;
+        private final String script;
+        private final boolean executable;
+        /** Cached agent information, else null to look it up under {@link #nodeRoot}. */
+        private final @CheckForNull AgentInfo agentInfo;
+        private final @CheckForNull String nodeRoot;
+        private final String pluginVersion;
+        /** A previously verified binary to check. */
+        private final @CheckForNull String cachedBinary;
+        /** Expected size of {@link #cachedBinary}, or -1 to only check that it exists. */
+        private final long cachedBinarySize;
+
+        PrepareLaunch(String controlDir, String scriptFile, String script, boolean executable, @CheckForNull AgentInfo agentInfo, @CheckForNull String nodeRoot, String pluginVersion, @CheckForNull String cachedBinary, long cachedBinarySize) {
+            this.controlDir = controlDir;
+            this.scriptFile = scriptFile;
+            this.script = script;
+            this.executable = executable;
+            this.agentInfo = agentInfo;
+            this.nodeRoot = nodeRoot;
+            this.pluginVersion = pluginVersion;
+            this.cachedBinary = cachedBinary;
+            this.cachedBinarySize = cachedBinarySize;
+        }
+
+        @Override public LaunchPreparation invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            new FilePath(ws).mkdirs();
+            new FilePath(new File(controlDir)).mkdirs();
+            AgentInfo fetched = agentInfo == null && nodeRoot != null ? new GetAgentInfo(pluginVersion).invoke(new File(nodeRoot), channel) : null;
+            AgentInfo info = agentInfo != null ? agentInfo : fetched;
+            String scriptEncoding = "UTF-8";
+            if (info != null && info.getOs() == OsType.ZOS) {
+                scriptEncoding = System.getProperty("ibm.system.encoding");
+            }
+            FilePath shf = new FilePath(new File(scriptFile));
+            shf.write(script, scriptEncoding);
+            if (executable) {
+                shf.chmod(0755);
+            }
+            boolean cachedBinaryIntact = false;
+            if (cachedBinary != null) {
+                File f = new File(cachedBinary);
+                cachedBinaryIntact = f.isFile() && (cachedBinarySize == -1 || f.length() == cachedBinarySize);
+            }
+            return new LaunchPreparation(fetched, scriptEncoding, cachedBinaryIntact);
         }
+    }
+
+    private static final class LaunchPreparation implements Serializable {
         private static final long serialVersionUID = 1L;
+        /** Null if {@link PrepareLaunch#nodeRoot} was. */
+        final @CheckForNull AgentInfo agentInfo;
+        /** Encoding in which the script was written, which is the system encoding on z/OS. */
+        final String scriptEncoding;
+        /** Whether {@link PrepareLaunch#cachedBinary} is still there. */
+        final boolean cachedBinaryIntact;
+        LaunchPreparation(@CheckForNull AgentInfo agentInfo, String scriptEncoding, boolean cachedBinaryIntact) {
+            this.agentInfo = agentInfo;
+            this.scriptEncoding = scriptEncoding;
+            this.cachedBinaryIntact = cachedBinaryIntact;
+        }
     }
 
     /* Local copy of StatusCheck to run on z/OS   */
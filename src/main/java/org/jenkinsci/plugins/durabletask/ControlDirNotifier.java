@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * Delivers file system notifications about control directories, so that watchers need not poll them frequently.
+ * Runs on the agent, using a {@link WatchService} (inotify on Linux).
+ * Filesystems which do not deliver events, such as some network mounts, must still be covered by occasional polling.
+ */
+final class ControlDirNotifier {
+
+    private static final Logger LOGGER = Logger.getLogger(ControlDirNotifier.class.getName());
+
+    private static ControlDirNotifier instance;
+    private static boolean unavailable;
+
+    /**
+     * @return the instance for this JVM, or null if file system notifications are not supported
+     */
+    static synchronized @CheckForNull ControlDirNotifier get() {
+        if (instance == null && !unavailable) {
+            try {
+                instance = new ControlDirNotifier(FileSystems.getDefault().newWatchService());
+            } catch (IOException | UnsupportedOperationException x) {
+                LOGGER.log(Level.WARNING, "file system notifications unavailable, falling back to polling", x);
+                unavailable = true;
+            }
+        }
+        return instance;
+    }
+
+    static synchronized void shutDown() {
+        if (instance != null) {
+            try {
+                instance.watchService.close();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, null, x);
+            }
+            instance = null;
+        }
+    }
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Registration> registrations = new ConcurrentHashMap<>();
+
+    private ControlDirNotifier(WatchService watchService) {
+        this.watchService = watchService;
+        Thread thread = new Thread(this::run, "FileMonitoringTask notifier");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Requests a callback whenever one of the named files in a directory is created or modified.
+     * The callback is run on a shared thread so it should return quickly.
+     * @return a handle to close when notifications are no longer wanted
+     */
+    Closeable register(Path dir, Set<String> fileNames, Runnable callback) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Registration registration = new Registration(fileNames, callback);
+        registrations.put(key, registration); // replaces any earlier watch of the same directory
+        return () -> {
+            if (registrations.remove(key, registration)) {
+                key.cancel();
+            }
+        };
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException x) {
+                return;
+            }
+            Registration registration = registrations.get(key);
+            boolean relevant = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    relevant = true;
+                } else if (registration != null && registration.fileNames.contains(String.valueOf(event.context()))) {
+                    relevant = true;
+                }
+            }
+            if (relevant && registration != null) {
+                try {
+                    registration.callback.run();
+                } catch (RuntimeException x) {
+                    LOGGER.log(Level.WARNING, null, x);
+                }
+            }
+            if (!key.reset()) { // directory deleted
+                registrations.remove(key);
+            }
+        }
+    }
+
+    private static final class Registration {
+        final Set<String> fileNames;
+        final Runnable callback;
+        Registration(Set<String> fileNames, Runnable callback) {
+            this.fileNames = fileNames;
+            this.callback = callback;
+        }
+    }
+
+}
@@ -27,12 +27,15 @@ package org.jenkinsci.plugins.durabletask;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.remoting.ChannelClosedException;
 import hudson.util.LogTaskListener;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
@@ -59,6 +62,28 @@ public abstract class Controller implements Serializable {
         throw new UnsupportedOperationException("Asynchronous mode is not implemented in " + getClass().getName());
     }
 
+    /**
+     * State of the agent side of a {@link #watch}.
+     */
+    public enum WatchState {
+        /** Delivering output normally. */
+        STREAMING,
+        /** Waiting to retry after a failure which might be transient. */
+        BACKING_OFF,
+        /** Given up after a failure; {@link #watch} must be called again. */
+        DEAD
+    }
+
+    /**
+     * Checks on a {@link #watch} in progress.
+     * @param workspace the workspace in use
+     * @return the current state, or null if there is no watch in progress (including when the process has exited and been cleaned up),
+     *         or if this is not known, as is the case by default
+     */
+    public @CheckForNull WatchState getWatchState(FilePath workspace) throws IOException, InterruptedException {
+        return null;
+    }
+
     /**
      * Obtains any new task log output.
      * Could use a serializable field to keep track of how much output has been previously written.
@@ -70,6 +95,49 @@ public abstract class Controller implements Serializable {
      */
     public abstract boolean writeLog(FilePath workspace, OutputStream sink) throws IOException, InterruptedException;
 
+    /**
+     * Obtains any new task log output and checks whether the task has finished, together.
+     * Implementations may do this more cheaply than separate calls to {@link #writeLog} and {@link #exitStatus(FilePath, Launcher, TaskListener)},
+     * for example with a single call to the agent.
+     * The exit status is checked before collecting output, so once it is non-null all output has been written,
+     * unless {@link #isMoreLogAvailable} says otherwise.
+     * If anything was written to the sink, the controller should be resaved, as with {@link #writeLog}.
+     * @param workspace the workspace in use
+     * @param sink where to send new log output
+     * @param launcher a way to start processes (currently unused)
+     * @param listener a way to report special messages
+     * @return an exit code (zero is successful), or null if the task appears to still be running
+     */
+    public @CheckForNull Integer writeLogAndExitStatus(FilePath workspace, OutputStream sink, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        Integer status = exitStatus(workspace, launcher, listener);
+        writeLog(workspace, sink);
+        return status;
+    }
+
+    /**
+     * Like {@link #writeLogAndExitStatus(FilePath, OutputStream, Launcher, TaskListener)}
+     * but first waiting up to some time for something to happen: new output, or the task finishing.
+     * This lets a caller learn promptly of completion without frequent polling of an idle task.
+     * The wait may be cut short at any time, so callers should expect to loop.
+     * By default, does not wait at all.
+     * @param timeout how long to wait at most
+     * @param unit the unit of {@code timeout}
+     * @return an exit code (zero is successful), or null if the task appears to still be running
+     */
+    public @CheckForNull Integer writeLogAndExitStatus(FilePath workspace, OutputStream sink, Launcher launcher, TaskListener listener, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        return writeLogAndExitStatus(workspace, sink, launcher, listener);
+    }
+
+    /**
+     * Checks whether the last call to {@link #writeLog} stopped before copying all the output then available,
+     * for example because implementations may limit how much is transferred at once.
+     * A caller draining a large backlog may then call {@link #writeLog} again right away rather than waiting for its next poll.
+     * @return false by default
+     */
+    public boolean isMoreLogAvailable() {
+        return false;
+    }
+
     /**
      * Checks whether the task has finished.
      * @param workspace the workspace in use
@@ -113,6 +181,19 @@ public abstract class Controller implements Serializable {
         throw new IOException("Did not implement getOutput in " + getClass().getName());
     }
 
+    /**
+     * Copies the process output to a stream.
+     * Like {@link #getOutput(FilePath, Launcher)} but need not hold all of the output in memory, so it is preferable when the output may be large.
+     * @param workspace the workspace in use
+     * @param launcher a way to start processes (currently unused)
+     * @param sink where to send the output as raw bytes; not closed
+     * @see DurableTask#charset
+     * @see DurableTask#defaultCharset
+     */
+    public void getOutput(@Nonnull FilePath workspace, @Nonnull Launcher launcher, @Nonnull OutputStream sink) throws IOException, InterruptedException {
+        sink.write(getOutput(workspace, launcher));
+    }
+
     /**
      * Tries to stop any running task.
      * @param workspace the workspace in use
@@ -142,6 +223,92 @@ public abstract class Controller implements Serializable {
      */
     public abstract void cleanup(FilePath workspace) throws IOException, InterruptedException;
 
+    /**
+     * Asynchronous variant of {@link #writeLog}.
+     * The asynchronous variants let a caller supervise many tasks without a thread blocked on each remote call.
+     * As with the blocking methods, calls which update the state of a controller, such as those writing log output,
+     * should not overlap, so wait for one to complete before starting the next.
+     * By default, each runs the blocking method on {@link Computer#threadPoolForRemoting}.
+     * @return a future which completes as {@link #writeLog} would return, or exceptionally
+     */
+    public CompletableFuture<Boolean> writeLogAsync(FilePath workspace, OutputStream sink) {
+        return supplyAsync(() -> writeLog(workspace, sink));
+    }
+
+    /**
+     * Asynchronous variant of {@link #exitStatus(FilePath, Launcher, TaskListener)}.
+     * @return a future which completes with the exit code, or null if the task appears to still be running
+     * @see #writeLogAsync
+     */
+    public CompletableFuture<Integer> exitStatusAsync(FilePath workspace, Launcher launcher, TaskListener listener) {
+        return supplyAsync(() -> exitStatus(workspace, launcher, listener));
+    }
+
+    /**
+     * Asynchronous variant of {@link #writeLogAndExitStatus(FilePath, OutputStream, Launcher, TaskListener, long, TimeUnit)}.
+     * Since no thread is tied up, a long timeout is cheap.
+     * @return a future which completes with the exit code, or null if the task appears to still be running
+     * @see #writeLogAsync
+     */
+    public CompletableFuture<Integer> writeLogAndExitStatusAsync(FilePath workspace, OutputStream sink, Launcher launcher, TaskListener listener, long timeout, TimeUnit unit) {
+        return supplyAsync(() -> writeLogAndExitStatus(workspace, sink, launcher, listener, timeout, unit));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getOutput(FilePath, Launcher, OutputStream)}.
+     * @see #writeLogAsync
+     */
+    public CompletableFuture<Void> getOutputAsync(FilePath workspace, Launcher launcher, OutputStream sink) {
+        return supplyAsync(() -> {
+            getOutput(workspace, launcher, sink);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #stop(FilePath, Launcher)}.
+     * @see #writeLogAsync
+     */
+    public CompletableFuture<Void> stopAsync(FilePath workspace, Launcher launcher) {
+        return supplyAsync(() -> {
+            stop(workspace, launcher);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #cleanup}.
+     * @see #writeLogAsync
+     */
+    public CompletableFuture<Void> cleanupAsync(FilePath workspace) {
+        return supplyAsync(() -> {
+            cleanup(workspace);
+            return null;
+        });
+    }
+
+    /** Something a controller does which may block on a remote call. */
+    @FunctionalInterface
+    protected interface Operation<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs an operation on {@link Computer#threadPoolForRemoting}.
+     * @return a future which completes with the result, or exceptionally with whatever it threw
+     */
+    protected static <T> CompletableFuture<T> supplyAsync(Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                future.complete(operation.run());
+            } catch (Exception x) {
+                future.completeExceptionally(x);
+            }
+        });
+        return future;
+    }
+
     /**
      * Should be overridden to provide specific information about the status of an external process, for diagnostic purposes.
      * @return {@link #toString} by default
@@ -25,58 +25,83 @@
 package org.jenkinsci.plugins.durabletask;
 
 import com.google.common.io.Files;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Platform;
+import hudson.Proc;
 import hudson.Util;
 import hudson.init.Terminator;
 import hudson.model.TaskListener;
+import hudson.remoting.Asynchronous;
 import hudson.remoting.Channel;
+import hudson.remoting.ChannelClosedException;
 import hudson.remoting.DaemonThreadFactory;
+import hudson.remoting.Future;
 import hudson.remoting.NamingThreadFactory;
 import hudson.remoting.RemoteOutputStream;
 import hudson.remoting.VirtualChannel;
 import hudson.slaves.WorkspaceList;
 import hudson.util.StreamTaskListener;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
+import java.io.Serializable;
 import java.io.StringWriter;
-import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
 import javax.annotation.CheckForNull;
-import javax.annotation.Nonnull;
 import jenkins.MasterToSlaveFileCallable;
 import jenkins.security.MasterToSlaveCallable;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.input.ReaderInputStream;
+import jenkins.util.Timer;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.io.output.CountingOutputStream;
-import org.apache.commons.io.output.WriterOutputStream;
 import org.jenkinsci.remoting.util.IOUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 /**
  * A task which forks some external command and then waits for log and status files to be updated/created.
@@ -90,6 +115,143 @@ public abstract class FileMonitoringTask extends DurableTask {
     /** Value of {@link #charset} used to mean the node’s system default. */
     private static final String SYSTEM_DEFAULT_CHARSET = "SYSTEM_DEFAULT";
 
+    /**
+     * Maximum number of bytes of log output copied by a single call to {@link FileMonitoringController#writeLog}.
+     * Anything beyond that is left for the next call; see {@link Controller#isMoreLogAvailable}.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WRITE_LOG_MAX = Long.getLong(FileMonitoringTask.class.getName() + ".WRITE_LOG_MAX", Long.MAX_VALUE);
+
+    /**
+     * Whether newly launched tasks should compress log and captured output sent from the agent in polling mode.
+     * Saves bandwidth for agents behind slow links at the cost of some CPU on both sides.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static boolean COMPRESS_TRANSFERS = Boolean.getBoolean(FileMonitoringTask.class.getName() + ".COMPRESS_TRANSFERS");
+
+    /**
+     * Whether {@link #startWrapper} should start the wrapper process from a callable on the agent with its standard streams discarded,
+     * rather than through the {@link Launcher}, which exports a pipe for each stream and starts threads to copy them.
+     * Only applies to plain local and remote launchers, since decorated ones may run commands in another environment.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static boolean DETACHED_LAUNCH = Boolean.getBoolean(FileMonitoringTask.class.getName() + ".DETACHED_LAUNCH");
+
+    /**
+     * How often, in milliseconds, the master looks at a remote call made for an asynchronous operation,
+     * in case it failed before the agent could report an outcome.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long ACT_ASYNC_CHECK_INTERVAL = Long.getLong(FileMonitoringTask.class.getName() + ".ACT_ASYNC_CHECK_INTERVAL", 1000);
+
+    /**
+     * Milliseconds a watcher waits between checks while the process is producing output.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_MIN_POLL_INTERVAL = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_MIN_POLL_INTERVAL", 100);
+
+    /**
+     * Maximum milliseconds a watcher waits between checks while the process is idle.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_MAX_POLL_INTERVAL = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_MAX_POLL_INTERVAL", 1000);
+
+    /**
+     * Factor by which the interval between checks grows each time a watcher finds no new output.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static double WATCH_POLL_BACKOFF = Double.parseDouble(System.getProperty(FileMonitoringTask.class.getName() + ".WATCH_POLL_BACKOFF", "1.5"));
+
+    /**
+     * Whether {@link Controller#watch} should be driven by file system notifications on the agent (inotify on Linux)
+     * rather than by frequently checking the control directory.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static boolean WATCH_FILE_NOTIFICATIONS = Boolean.getBoolean(FileMonitoringTask.class.getName() + ".WATCH_FILE_NOTIFICATIONS");
+
+    /**
+     * Maximum milliseconds between checks of a watched control directory when {@link #WATCH_FILE_NOTIFICATIONS} is in effect,
+     * as a safety net for filesystems which do not deliver notifications.
+     * Replaces {@link #WATCH_MAX_POLL_INTERVAL}, so it should be well above that to make notifications worthwhile.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_FALLBACK_POLL_INTERVAL = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_FALLBACK_POLL_INTERVAL", 10_000);
+
+    /**
+     * Maximum bytes of log output a watcher passes to {@link Handler#output} in one turn.
+     * A process with more pending output goes to the back of the queue, so that one noisy step cannot starve others on the same agent.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_BYTE_BUDGET = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_BYTE_BUDGET", 1024 * 1024);
+
+    /**
+     * If positive, a watcher holds back new log output smaller than this many bytes,
+     * so that a process printing many short lines produces fewer, larger calls to {@link Handler#output}.
+     * Output is never held longer than {@link #WATCH_COALESCE_DELAY}, nor once the process has exited.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_COALESCE_BYTES = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_COALESCE_BYTES", 0);
+
+    /**
+     * Maximum milliseconds by which {@link #WATCH_COALESCE_BYTES} may delay delivery of output.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_COALESCE_DELAY = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_COALESCE_DELAY", 500);
+
+    /**
+     * Number of times in a row a watcher retries after a failure which might be transient, such as an {@link IOException} from {@link Handler#output},
+     * before giving up until {@link #watch} is called again.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static int WATCH_RETRIES = Integer.getInteger(FileMonitoringTask.class.getName() + ".WATCH_RETRIES", 5);
+
+    /**
+     * Milliseconds a watcher waits before its first retry; doubled for each further consecutive failure.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long WATCH_RETRY_DELAY = Long.getLong(FileMonitoringTask.class.getName() + ".WATCH_RETRY_DELAY", 1000);
+
+    /**
+     * Number of threads on each agent used to check watched processes and stream their output.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static int WATCH_POOL_SIZE = Integer.getInteger(FileMonitoringTask.class.getName() + ".WATCH_POOL_SIZE", 5);
+
+    /**
+     * Whether agents should check each watched process on a virtual thread of its own rather than on the {@link #WATCH_POOL_SIZE} pool,
+     * so that a slow {@link Handler#output} holds up fewer unrelated processes.
+     * If unset, they are used on agents running Java 24 or newer.
+     * On Java 21 to 23, a virtual thread which blocks inside {@code synchronized} code pins its carrier thread,
+     * and that is where typical slow sinks block (a remoting {@code ProxyOutputStream} waiting for window space, or {@link OutputMultiplexer} sending a batch),
+     * so there a few slow sinks can still stall every check on the agent, much as with the pool;
+     * {@code true} nonetheless uses virtual threads on Java 21 or newer, and {@code false} never does.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static @CheckForNull String WATCH_VIRTUAL_THREADS = System.getProperty(FileMonitoringTask.class.getName() + ".WATCH_VIRTUAL_THREADS");
+
+    /** Bytes received from agents in compressed form since startup. */
+    private static final AtomicLong compressedBytesReceived = new AtomicLong();
+
+    /** Bytes those compressed transfers expanded to. */
+    private static final AtomicLong uncompressedBytesReceived = new AtomicLong();
+
+    /**
+     * Total bytes actually received over the channel for compressed transfers.
+     * Compare to {@link #getUncompressedBytesReceived} to see the saving.
+     */
+    @Restricted(NoExternalUse.class)
+    public static long getCompressedBytesReceived() {
+        return compressedBytesReceived.get();
+    }
+
+    /**
+     * Total size of compressed transfers after decompression.
+     */
+    @Restricted(NoExternalUse.class)
+    public static long getUncompressedBytesReceived() {
+        return uncompressedBytesReceived.get();
+    }
+
     /**
      * Charset name to use for transcoding, or {@link #SYSTEM_DEFAULT_CHARSET}, or null for no transcoding.
      */
@@ -102,6 +264,7 @@ public abstract class FileMonitoringTask extends DurableTask {
     @Override public final Controller launch(EnvVars env, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
         FileMonitoringController controller = launchWithCookie(workspace, launcher, listener, env, COOKIE, cookieFor(workspace));
         controller.charset = charset;
+        controller.compressTransfers = COMPRESS_TRANSFERS;
         return controller;
     }
 
@@ -147,6 +310,194 @@ public abstract class FileMonitoringTask extends DurableTask {
         return m;
     }
 
+    /**
+     * Starts a wrapper process which is expected to produce no output of its own and is not waited for.
+     * @param launcher the launcher which created {@code ps}
+     * @param ps a fully configured command
+     * @param c the controller for the task
+     */
+    protected static void startWrapper(Launcher launcher, Launcher.ProcStarter ps, FileMonitoringController c) throws IOException, InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        if (DETACHED_LAUNCH && channel != null && (launcher.getClass() == Launcher.LocalLauncher.class || launcher.getClass() == Launcher.RemoteLauncher.class)) {
+            FilePath pwd = ps.pwd();
+            channel.call(new StartDetached(ps.cmds(), ps.envs(), pwd != null ? pwd.getRemote() : null));
+        } else {
+            ps.readStdout().readStderr(); // TODO RemoteLauncher.launch fails to check ps.stdout == NULL_OUTPUT_STREAM, so it creates a useless thread even if you never called stdout(…)
+            Proc p = ps.start();
+            // Make sure these stream will get closed later, to release their remote counterpart from the agent's ExportTable. See JENKINS-60960.
+            c.registerForCleanup(p.getStdout());
+            c.registerForCleanup(p.getStderr());
+        }
+    }
+
+    /**
+     * Starts a process with its standard streams connected to the null device, as {@link Launcher.LocalLauncher} would start it otherwise.
+     * The JVM reaps it when it exits.
+     */
+    private static final class StartDetached extends MasterToSlaveCallable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final List<String> cmds;
+        private final @CheckForNull String[] envs;
+        private final @CheckForNull String pwd;
+        StartDetached(List<String> cmds, @CheckForNull String[] envs, @CheckForNull String pwd) {
+            this.cmds = new ArrayList<>(cmds);
+            this.envs = envs;
+            this.pwd = pwd;
+        }
+        @Override public Void call() throws IOException {
+            EnvVars overrides = new EnvVars();
+            if (envs != null) {
+                for (String e : envs) {
+                    int index = e.indexOf('=');
+                    overrides.put(e.substring(0, index), e.substring(index + 1));
+                }
+            }
+            EnvVars env = new EnvVars(EnvVars.masterEnvVars);
+            env.overrideExpandingAll(overrides);
+            List<String> jobCmd = new ArrayList<>(cmds.size());
+            for (String cmd : cmds) { // as LocalLauncher does
+                jobCmd.add(env.expand(cmd));
+            }
+            File nul = new File(Platform.current() == Platform.WINDOWS ? "NUL" : "/dev/null");
+            ProcessBuilder pb = new ProcessBuilder(jobCmd)
+                .redirectInput(ProcessBuilder.Redirect.from(nul))
+                .redirectOutput(ProcessBuilder.Redirect.to(nul))
+                .redirectError(ProcessBuilder.Redirect.to(nul));
+            if (pwd != null) {
+                pb.directory(new File(pwd));
+            }
+            pb.environment().clear();
+            pb.environment().putAll(env);
+            pb.start();
+            return null;
+        }
+    }
+
+    /**
+     * Receives the outcome of an asynchronous call from the agent.
+     * Only public so that it may be exported over a channel.
+     */
+    @Restricted(NoExternalUse.class)
+    public interface AsyncCompletion<T> {
+        @Asynchronous void complete(@CheckForNull T value);
+        @Asynchronous void fail(Throwable failure);
+    }
+
+    /**
+     * One task to check in {@link #writeLogAndExitStatus(Collection, TaskListener)}.
+     */
+    public static final class Poll {
+
+        private final Controller controller;
+        private final FilePath workspace;
+        private final Launcher launcher;
+        private final OutputStream sink;
+        private @CheckForNull Integer exitStatus;
+        private @CheckForNull IOException failure;
+
+        /**
+         * @param controller as returned from {@link DurableTask#launch}
+         * @param workspace the workspace in use
+         * @param launcher a way to start processes, used only if {@code controller} cannot be polled in bulk
+         * @param sink where to send new log output
+         */
+        public Poll(Controller controller, FilePath workspace, Launcher launcher, OutputStream sink) {
+            this.controller = controller;
+            this.workspace = workspace;
+            this.launcher = launcher;
+            this.sink = sink;
+        }
+
+        public Controller getController() {
+            return controller;
+        }
+
+        /**
+         * Outcome of the poll, as in {@link Controller#writeLogAndExitStatus}.
+         * @return an exit code (zero is successful), or null if the task appears to still be running
+         * @throws IOException if this task could not be checked
+         */
+        public @CheckForNull Integer getExitStatus() throws IOException {
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            return exitStatus;
+        }
+
+    }
+
+    /**
+     * Like {@link Controller#writeLogAndExitStatus} on each of a number of tasks,
+     * but making only one call to each agent involved, however many tasks are running there.
+     * Controllers not launched by a {@link FileMonitoringTask} (or overriding its status check) are simply polled one by one.
+     * As with {@link Controller#writeLog}, controllers to which output was written should be resaved.
+     * @param polls tasks to check; afterwards, see {@link Poll#getExitStatus}
+     * @param listener a way to report special messages
+     */
+    public static void writeLogAndExitStatus(Collection<Poll> polls, TaskListener listener) throws InterruptedException {
+        Map<VirtualChannel, List<Poll>> byChannel = new IdentityHashMap<>();
+        for (Poll poll : polls) {
+            VirtualChannel channel = poll.workspace.getChannel();
+            if (poll.controller instanceof FileMonitoringController && channel != null && !Util.isOverridden(FileMonitoringController.class, poll.controller.getClass(), "exitStatus", FilePath.class, TaskListener.class)) {
+                byChannel.computeIfAbsent(channel, k -> new ArrayList<>()).add(poll);
+            } else {
+                try {
+                    poll.exitStatus = poll.controller.writeLogAndExitStatus(poll.workspace, poll.sink, poll.launcher, listener);
+                } catch (IOException x) {
+                    poll.failure = x;
+                }
+            }
+        }
+        for (Map.Entry<VirtualChannel, List<Poll>> entry : byChannel.entrySet()) {
+            List<Poll> channelPolls = entry.getValue();
+            List<FileMonitoringController.LogTransfer> transfers = new ArrayList<>(channelPolls.size());
+            FileMonitoringController.BulkWriteLog bulk = new FileMonitoringController.BulkWriteLog();
+            for (Poll poll : channelPolls) {
+                FileMonitoringController controller = (FileMonitoringController) poll.controller;
+                try {
+                    FileMonitoringController.LogTransfer transfer = controller.new LogTransfer(poll.workspace, poll.sink, controller.statusCheck());
+                    transfers.add(transfer);
+                    bulk.add(transfer.log, transfer.writeLog);
+                } catch (IOException x) {
+                    poll.failure = x;
+                    transfers.add(null);
+                }
+            }
+            List<FileMonitoringController.WriteLogResult> results = null;
+            try {
+                results = entry.getKey().call(bulk);
+            } catch (IOException x) {
+                for (Poll poll : channelPolls) {
+                    if (poll.failure == null) {
+                        poll.failure = x;
+                    }
+                }
+            } finally {
+                int r = 0;
+                for (int i = 0; i < channelPolls.size(); i++) {
+                    Poll poll = channelPolls.get(i);
+                    FileMonitoringController.LogTransfer transfer = transfers.get(i);
+                    if (transfer == null) {
+                        continue;
+                    }
+                    FileMonitoringController.WriteLogResult result = results != null ? results.get(r++) : null;
+                    try {
+                        if (result != null && result.failure != null) {
+                            transfer.finish(null);
+                            throw result.failure instanceof IOException ? (IOException) result.failure : new IOException(result.failure);
+                        }
+                        transfer.finish(result);
+                        if (result != null) {
+                            poll.exitStatus = ((FileMonitoringController) poll.controller).exitStatus(poll.workspace, listener, result.status, result.logTimestamp);
+                        }
+                    } catch (IOException x) {
+                        poll.failure = x;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Tails a log file and watches for an exit status file.
      * Must be remotable so that {@link #watch} can transfer the implementation.
@@ -167,6 +518,13 @@ public abstract class FileMonitoringTask extends DurableTask {
          */
         private long lastLocation;
 
+        /**
+         * Offset in the file up to which the last {@link #writeLog} read, which is past {@link #lastLocation}
+         * if an incomplete character at the end was left for next time.
+         * Not persisted: after a restart, the first wait for new output may end early.
+         */
+        private transient long lastRead;
+
         /** @see FileMonitoringTask#charset */
         private @CheckForNull String charset;
 
@@ -174,6 +532,9 @@ public abstract class FileMonitoringTask extends DurableTask {
             return charset;
         }
 
+        /** Whether {@link #writeLog} and {@link #getOutput(FilePath)} compress data sent from a remote agent. */
+        private boolean compressTransfers;
+
         private transient List<Closeable> cleanupList;
 
         void registerForCleanup(Closeable c) {
@@ -183,18 +544,14 @@ public abstract class FileMonitoringTask extends DurableTask {
             cleanupList.add(c);
         }
 
-        /**
-         * {@link #transcodingCharset} on the remote side when using {@link #writeLog}.
-         * May be null; initialized on demand.
-         */
-        private transient volatile Charset writeLogCs;
+        /** Whether the last call to {@link #writeLog} stopped short of the end of the log file. */
+        private transient boolean moreLogAvailable;
 
         protected FileMonitoringController(FilePath ws) throws IOException, InterruptedException {
             // can't keep ws reference because Controller is expected to be serializable
             ws.mkdirs();
-            FilePath tmpDir = /* TODO pending JENKINS-61197 fix in baseline */ ws.getParent() != null ? WorkspaceList.tempDir(ws) : null;
-            if (tmpDir != null) {
-                FilePath cd = tmpDir.child("durable-" + Util.getDigestOf(UUID.randomUUID().toString()).substring(0,8));
+            FilePath cd = newControlDir(ws);
+            if (cd != null) {
                 cd.mkdirs();
                 controlDir = cd.getRemote();
             } else {
@@ -202,69 +559,353 @@ public abstract class FileMonitoringTask extends DurableTask {
             }
         }
 
+        /**
+         * Like {@link #FileMonitoringController(FilePath)} but without making any calls to the agent,
+         * for subclasses which create the workspace and control directory themselves while preparing the launch.
+         * @param controlDir as from {@link #newControlDir}
+         */
+        protected FileMonitoringController(String controlDir) {
+            this.controlDir = controlDir;
+        }
+
+        /**
+         * Picks a fresh {@linkplain #controlDir control directory} for a controller, without creating it.
+         * @return a path, or null if the workspace has no parent
+         */
+        protected static @CheckForNull FilePath newControlDir(FilePath ws) {
+            FilePath tmpDir = /* TODO pending JENKINS-61197 fix in baseline */ ws.getParent() != null ? WorkspaceList.tempDir(ws) : null;
+            return tmpDir != null ? tmpDir.child("durable-" + Util.getDigestOf(UUID.randomUUID().toString()).substring(0,8)) : null;
+        }
+
         @Override public final boolean writeLog(FilePath workspace, OutputStream sink) throws IOException, InterruptedException {
-            if (writeLogCs == null) {
-                if (SYSTEM_DEFAULT_CHARSET.equals(charset)) {
-                    String cs = workspace.act(new TranscodingCharsetForSystemDefault());
-                    writeLogCs = cs == null ? null : Charset.forName(cs);
-                } else {
-                    // Does not matter what system default charset on the remote side is, so save the Remoting call.
-                    writeLogCs = transcodingCharset(charset);
-                }
-                LOGGER.log(Level.FINE, "remote transcoding charset: {0}", writeLogCs);
+            long before = lastLocation;
+            writeLog(workspace, sink, null);
+            return lastLocation != before;
+        }
+
+        /**
+         * Checks the result file and copies new log output in a single call to the agent,
+         * unless a subclass overrides {@link #exitStatus(FilePath, TaskListener)}, in which case that is called separately.
+         */
+        @Override public @CheckForNull Integer writeLogAndExitStatus(FilePath workspace, OutputStream sink, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+            if (Util.isOverridden(FileMonitoringController.class, getClass(), "exitStatus", FilePath.class, TaskListener.class)) {
+                return super.writeLogAndExitStatus(workspace, sink, launcher, listener);
             }
-            FilePath log = getLogFile(workspace);
-            OutputStream transcodedSink;
-            if (writeLogCs == null) {
-                transcodedSink = sink;
-            } else {
-                // WriterOutputStream constructor taking Charset calls .replaceWith("?") which we do not want:
-                CharsetDecoder decoder = writeLogCs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
-                transcodedSink = new WriterOutputStream(new OutputStreamWriter(sink, StandardCharsets.UTF_8), decoder, 1024, true);
+            WriteLogResult result = writeLog(workspace, sink, statusCheck());
+            return exitStatus(workspace, listener, result.status, result.logTimestamp);
+        }
+
+        /**
+         * Waits on the agent until there is new output or the result file is written, then checks both in the same call.
+         */
+        @Override public @CheckForNull Integer writeLogAndExitStatus(FilePath workspace, OutputStream sink, Launcher launcher, TaskListener listener, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+            if (Util.isOverridden(FileMonitoringController.class, getClass(), "exitStatus", FilePath.class, TaskListener.class)) {
+                return super.writeLogAndExitStatus(workspace, sink, launcher, listener, timeout, unit);
+            }
+            WriteLogResult result = writeLog(workspace, sink, statusCheck(), unit.toNanos(timeout));
+            return exitStatus(workspace, listener, result.status, result.logTimestamp);
+        }
+
+        private WriteLogResult writeLog(FilePath workspace, OutputStream sink, @CheckForNull MasterToSlaveFileCallable<Integer> statusCheck) throws IOException, InterruptedException {
+            return writeLog(workspace, sink, statusCheck, 0);
+        }
+
+        /**
+         * @param statusCheck if not null, also check the result file this way (before copying output)
+         * @param waitNanos if positive (and checking status), how long to wait for something to happen first
+         */
+        private WriteLogResult writeLog(FilePath workspace, OutputStream sink, @CheckForNull MasterToSlaveFileCallable<Integer> statusCheck, long waitNanos) throws IOException, InterruptedException {
+            LogTransfer transfer = new LogTransfer(workspace, sink, statusCheck);
+            if (waitNanos > 0) {
+                transfer.writeLog.awaitChange(waitNanos, lastRead);
+            }
+            WriteLogResult result = null;
+            try {
+                result = transfer.log.act(transfer.writeLog);
+                return result;
+            } finally {
+                transfer.finish(result);
+            }
+        }
+
+        @Override public CompletableFuture<Boolean> writeLogAsync(FilePath workspace, OutputStream sink) {
+            long before = lastLocation;
+            return writeLogAsync(workspace, sink, null, 0).thenApply(result -> lastLocation != before);
+        }
+
+        @Override public CompletableFuture<Integer> exitStatusAsync(FilePath workspace, Launcher launcher, TaskListener listener) {
+            if (Util.isOverridden(FileMonitoringController.class, getClass(), "exitStatus", FilePath.class, TaskListener.class)) {
+                return super.exitStatusAsync(workspace, launcher, listener);
+            }
+            FilePath resultFile;
+            try {
+                resultFile = getResultFile(workspace);
+            } catch (IOException | InterruptedException x) {
+                return failedFuture(x);
+            }
+            return actAsync(resultFile, statusCheck()).thenCompose(status -> supplyAsync(() -> exitStatus(workspace, listener, status, -1)));
+        }
+
+        @Override public CompletableFuture<Integer> writeLogAndExitStatusAsync(FilePath workspace, OutputStream sink, Launcher launcher, TaskListener listener, long timeout, TimeUnit unit) {
+            if (Util.isOverridden(FileMonitoringController.class, getClass(), "exitStatus", FilePath.class, TaskListener.class)) {
+                return super.writeLogAndExitStatusAsync(workspace, sink, launcher, listener, timeout, unit);
             }
-            CountingOutputStream cos = new CountingOutputStream(transcodedSink);
+            return writeLogAsync(workspace, sink, statusCheck(), unit.toNanos(timeout)).thenCompose(result -> supplyAsync(() -> exitStatus(workspace, listener, result.status, result.logTimestamp)));
+        }
+
+        /** Like {@link #writeLog(FilePath, OutputStream, MasterToSlaveFileCallable, long)} but using {@link #actAsync}. */
+        private CompletableFuture<WriteLogResult> writeLogAsync(FilePath workspace, OutputStream sink, @CheckForNull MasterToSlaveFileCallable<Integer> statusCheck, long waitNanos) {
+            LogTransfer transfer;
             try {
-                log.act(new WriteLog(lastLocation, new RemoteOutputStream(cos)));
-                return cos.getByteCount() > 0;
-            } finally { // even if RemoteOutputStream write was interrupted, record what we actually received
-                transcodedSink.flush(); // writeImmediately flag does not seem to work
-                long written = cos.getByteCount();
+                transfer = new LogTransfer(workspace, sink, statusCheck);
+            } catch (IOException | InterruptedException x) {
+                return failedFuture(x);
+            }
+            if (waitNanos > 0) {
+                transfer.writeLog.awaitChange(waitNanos, lastRead);
+            }
+            return actAsync(transfer.log, transfer.writeLog).handle((result, failure) -> {
+                try {
+                    transfer.finish(failure == null ? result : null);
+                } catch (IOException x) {
+                    if (failure == null) {
+                        throw new CompletionException(x);
+                    }
+                    failure.addSuppressed(x);
+                }
+                if (failure != null) {
+                    throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                }
+                return result;
+            });
+        }
+
+        /**
+         * One {@link WriteLog} call, whether made on its own or as part of a {@link BulkWriteLog}.
+         * {@link #finish} must be called once it is done, successfully or not.
+         */
+        private final class LogTransfer {
+
+            final FilePath log;
+            final WriteLog writeLog;
+            private final CountingOutputStream cos;
+            private final @CheckForNull Inflater inflater;
+            private final CountingOutputStream received;
+
+            LogTransfer(FilePath workspace, OutputStream sink, @CheckForNull MasterToSlaveFileCallable<Integer> statusCheck) throws IOException, InterruptedException {
+                log = getLogFile(workspace);
+                cos = new CountingOutputStream(sink);
+                boolean compress = compressTransfers && log.isRemote();
+                inflater = compress ? new Inflater() : null;
+                received = compress ? new CountingOutputStream(new InflaterOutputStream(cos, inflater)) : cos;
+                // Transcoding (if any) happens on the agent, which also resolves the system default charset.
+                writeLog = new WriteLog(lastLocation, WRITE_LOG_MAX, charset, compress, new RemoteOutputStream(received));
+                if (statusCheck != null) {
+                    writeLog.checkStatus(getResultFile(workspace).getRemote(), statusCheck);
+                }
+            }
+
+            /**
+             * @param result what the agent returned, or null if the call failed
+             */
+            void finish(@CheckForNull WriteLogResult result) throws IOException {
+                if (inflater != null) {
+                    received.flush();
+                    inflater.end();
+                    recordCompressedTransfer(received.getByteCount(), cos.getByteCount());
+                }
+                long written;
+                if (result != null) {
+                    written = result.end - lastLocation;
+                } else if (charset == null) { // even if RemoteOutputStream write was interrupted, record what we actually received
+                    written = cos.getByteCount();
+                } else { // we cannot tell how much of the file the transcoded output we got corresponds to
+                    written = 0;
+                }
                 if (written > 0) {
                     LOGGER.log(Level.FINE, "copied {0} bytes from {1}", new Object[] {written, log});
                     lastLocation += written;
                 }
+                if (result != null) {
+                    lastRead = result.read;
+                }
+                moreLogAvailable = result != null && result.more;
+            }
+
+        }
+
+        @Override public boolean isMoreLogAvailable() {
+            return moreLogAvailable;
+        }
+
+        /** Outcome of {@link WriteLog}. */
+        private static final class WriteLogResult implements Serializable {
+            private static final long serialVersionUID = 1L;
+            /** Offset in the log file up to which output was copied. */
+            final long end;
+            /** Whether output beyond the maximum was left for next time. */
+            final boolean more;
+            /** Offset in the log file up to which it was read, at least {@link #end}. */
+            long read;
+            /** Contents of the result file, if requested and present. */
+            @CheckForNull Integer status;
+            /** Modification time of the log file. */
+            long logTimestamp;
+            /** Set instead of the other fields if this entry of a {@link BulkWriteLog} failed. */
+            @CheckForNull Exception failure;
+            WriteLogResult(long end, boolean more) {
+                this.end = end;
+                this.more = more;
+            }
+            WriteLogResult(Exception failure) {
+                this(-1, false);
+                this.failure = failure;
+            }
+        }
+
+        /** Runs several {@link WriteLog}s on one agent, collecting failures per log file. */
+        private static final class BulkWriteLog extends MasterToSlaveCallable<List<WriteLogResult>, InterruptedException> {
+            private static final long serialVersionUID = 1L;
+            private final List<String> logFiles = new ArrayList<>();
+            private final List<WriteLog> writeLogs = new ArrayList<>();
+            void add(FilePath logFile, WriteLog writeLog) {
+                logFiles.add(logFile.getRemote());
+                writeLogs.add(writeLog);
+            }
+            @Override public List<WriteLogResult> call() throws InterruptedException {
+                VirtualChannel channel = Channel.current();
+                if (channel == null) {
+                    channel = FilePath.localChannel;
+                }
+                List<WriteLogResult> results = new ArrayList<>(logFiles.size());
+                for (int i = 0; i < logFiles.size(); i++) {
+                    try {
+                        results.add(writeLogs.get(i).invoke(new File(logFiles.get(i)), channel));
+                    } catch (IOException | RuntimeException x) {
+                        results.add(new WriteLogResult(x));
+                    }
+                }
+                return results;
             }
         }
-        private static class WriteLog extends MasterToSlaveFileCallable<Void> {
+
+        /**
+         * Copies new log output, up to some maximum, transcoding it to UTF-8 if so requested.
+         * A multibyte character cut off at the end is left for the next call.
+         */
+        private static class WriteLog extends MasterToSlaveFileCallable<WriteLogResult> {
             private final long lastLocation;
+            private final long maxBytes;
+            private final @CheckForNull String charset;
+            private final boolean compress;
             private final OutputStream sink;
-            WriteLog(long lastLocation, OutputStream sink) {
+            private @CheckForNull String resultFile;
+            private @CheckForNull MasterToSlaveFileCallable<Integer> statusCheck;
+            private long waitNanos;
+            private long lastRead;
+            private long minPollInterval;
+            private long maxPollInterval;
+            private double pollBackoff;
+            WriteLog(long lastLocation, long maxBytes, @CheckForNull String charset, boolean compress, OutputStream sink) {
                 this.lastLocation = lastLocation;
+                this.maxBytes = maxBytes;
+                this.charset = charset;
+                this.compress = compress;
                 this.sink = sink;
             }
-            @Override public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
-                long len = f.length();
-                if (len > lastLocation) {
-                    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
-                        raf.seek(lastLocation);
-                        long toRead = len - lastLocation;
-                        if (toRead > Integer.MAX_VALUE) { // >2Gb of output at once is unlikely
-                            throw new IOException("large reads not yet implemented");
+            /** Also reports the exit status and the log file timestamp, saving separate calls. */
+            void checkStatus(String resultFile, MasterToSlaveFileCallable<Integer> statusCheck) {
+                this.resultFile = resultFile;
+                this.statusCheck = statusCheck;
+            }
+            /**
+             * Before checking anything, waits for new output or for the result file to be written, up to some limit.
+             * Polls at intervals as per {@link #WATCH_MIN_POLL_INTERVAL} and so on.
+             * @param lastRead {@link WriteLogResult#read} from the previous call, so that bytes held back then do not count as new output
+             */
+            void awaitChange(long waitNanos, long lastRead) {
+                this.waitNanos = waitNanos;
+                this.lastRead = lastRead;
+                minPollInterval = WATCH_MIN_POLL_INTERVAL;
+                maxPollInterval = WATCH_MAX_POLL_INTERVAL;
+                pollBackoff = WATCH_POLL_BACKOFF;
+            }
+            @Override public WriteLogResult invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+                if (waitNanos > 0 && resultFile != null) {
+                    File result = new File(resultFile);
+                    File controlDir = f.getParentFile();
+                    PollBackoff backoff = new PollBackoff(minPollInterval, maxPollInterval, pollBackoff);
+                    long deadline = System.nanoTime() + waitNanos;
+                    long seen = Math.max(lastLocation, lastRead);
+                    while (f.length() <= seen && result.length() == 0 && controlDir.isDirectory()) {
+                        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            break;
                         }
-                        byte[] buf = new byte[(int) toRead];
-                        raf.readFully(buf);
-                        sink.write(buf);
+                        Thread.sleep(Math.min(remaining, backoff.next(false)));
                     }
                 }
-                return null;
+                // check before collecting output, in case the process is just now finishing
+                Integer status = statusCheck != null ? statusCheck.invoke(new File(resultFile), channel) : null;
+                long len = f.length();
+                WriteLogResult result;
+                if (len <= lastLocation) {
+                    result = new WriteLogResult(lastLocation, false);
+                    result.read = lastLocation;
+                } else {
+                    long end = lastLocation + Math.min(len - lastLocation, maxBytes);
+                    // Once the process has exited, flush any trailing incomplete character or shift state, as the watcher does.
+                    long position = copy(f, lastLocation, end, transcodingCharset(charset), status != null && end == len, compress, sink);
+                    result = new WriteLogResult(position, end < len);
+                    result.read = end;
+                }
+                if (statusCheck != null) {
+                    result.status = status;
+                    result.logTimestamp = f.lastModified();
+                }
+                return result;
             }
         }
 
-        private static class TranscodingCharsetForSystemDefault extends MasterToSlaveCallable<String, RuntimeException> {
-            @Override public String call() throws RuntimeException {
-                Charset cs = transcodingCharset(SYSTEM_DEFAULT_CHARSET);
-                return cs != null ? cs.name() : null;
+        /**
+         * Copies part of a file to a sink, transcoding and compressing it as requested.
+         * @param endOfInput whether the file is complete, so that an incomplete multibyte character at the end should be replaced rather than left for next time
+         * @return the offset up to which the file was copied
+         */
+        private static long copy(File f, long start, long end, @CheckForNull Charset cs, boolean endOfInput, boolean compress, OutputStream sink) throws IOException {
+            long position = start;
+            Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                DeflaterOutputStream dos = compress ? new DeflaterOutputStream(sink, deflater, COMPRESSION_BUFFER_SIZE) : null;
+                OutputStream out = compress ? dos : sink;
+                if (cs == null) {
+                    // transferTo reads through a JDK-cached direct buffer in bounded windows, without seeking or a heap copy of the whole delta.
+                    // (Not mapping the file: a MappedByteBuffer keeps the log open until collected, which on Windows blocks cleanup.)
+                    WritableByteChannel target = Channels.newChannel(out);
+                    while (position < end) {
+                        long transferred = ch.transferTo(position, end - position, target);
+                        if (transferred <= 0) { // truncated in the meantime
+                            break;
+                        }
+                        position += transferred;
+                    }
+                } else {
+                    Transcoder transcoder = Transcoder.obtain(cs);
+                    try {
+                        position = transcoder.transcode(ch, position, end, endOfInput, out);
+                    } finally {
+                        transcoder.release();
+                    }
+                }
+                if (dos != null) {
+                    dos.finish();
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
             }
+            return position;
         }
 
         /** Avoids excess round-tripping when reading status file. */
@@ -304,53 +945,136 @@ public abstract class FileMonitoringTask extends DurableTask {
          */
         protected @CheckForNull Integer exitStatus(FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
             FilePath status = getResultFile(workspace);
-            return status.act(STATUS_CHECK_INSTANCE);
+            return exitStatus(workspace, listener, status.act(statusCheck()), -1);
+        }
+
+        /**
+         * Reads the {@linkplain #getResultFile result file}.
+         * @return {@link #STATUS_CHECK_INSTANCE} by default
+         */
+        protected MasterToSlaveFileCallable<Integer> statusCheck() {
+            return STATUS_CHECK_INSTANCE;
+        }
+
+        /**
+         * Interprets what was found in the {@linkplain #getResultFile result file}, perhaps applying heuristics if nothing was.
+         * @param status the exit code recorded there, if any
+         * @param logTimestamp {@link File#lastModified} of the {@linkplain #getLogFile log file} if already known, else -1
+         * @return {@code status} by default
+         */
+        protected @CheckForNull Integer exitStatus(FilePath workspace, TaskListener listener, @CheckForNull Integer status, long logTimestamp) throws IOException, InterruptedException {
+            return status;
         }
 
         @Override public byte[] getOutput(FilePath workspace, Launcher launcher) throws IOException, InterruptedException {
             return getOutput(workspace);
         }
 
+        @Override public void getOutput(FilePath workspace, Launcher launcher, OutputStream sink) throws IOException, InterruptedException {
+            getOutput(workspace, sink);
+        }
+
         /**
          * Like {@link #getOutput(FilePath, Launcher)} but not requesting a {@link Launcher}, which would not be available in {@link #watch} mode anyway.
          */
         protected byte[] getOutput(FilePath workspace) throws IOException, InterruptedException {
-            return getOutputFile(workspace).act(new GetOutput(charset));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            getOutput(workspace, baos);
+            return baos.toByteArray();
         }
 
-        private static class GetOutput extends MasterToSlaveFileCallable<byte[]> {
+        /**
+         * Like {@link #getOutput(FilePath, Launcher, OutputStream)} but not requesting a {@link Launcher}.
+         */
+        protected void getOutput(FilePath workspace, OutputStream sink) throws IOException, InterruptedException {
+            FilePath outputFile = getOutputFile(workspace);
+            CountingOutputStream cos = new CountingOutputStream(sink);
+            boolean compress = compressTransfers && outputFile.isRemote();
+            Inflater inflater = compress ? new Inflater() : null;
+            CountingOutputStream received = compress ? new CountingOutputStream(new InflaterOutputStream(cos, inflater, COMPRESSION_BUFFER_SIZE)) : cos;
+            try {
+                outputFile.act(new GetOutput(charset, compress, new RemoteOutputStream(received)));
+            } finally {
+                if (inflater != null) {
+                    received.flush();
+                    inflater.end();
+                    recordCompressedTransfer(received.getByteCount(), cos.getByteCount());
+                }
+            }
+        }
+
+        @Override public CompletableFuture<Void> getOutputAsync(FilePath workspace, Launcher launcher, OutputStream sink) {
+            FilePath outputFile;
+            try {
+                outputFile = getOutputFile(workspace);
+            } catch (IOException | InterruptedException x) {
+                return failedFuture(x);
+            }
+            CountingOutputStream cos = new CountingOutputStream(sink);
+            boolean compress = compressTransfers && outputFile.isRemote();
+            Inflater inflater = compress ? new Inflater() : null;
+            CountingOutputStream received = compress ? new CountingOutputStream(new InflaterOutputStream(cos, inflater, COMPRESSION_BUFFER_SIZE)) : cos;
+            return actAsync(outputFile, new GetOutput(charset, compress, new RemoteOutputStream(received))).handle((v, failure) -> {
+                if (inflater != null) {
+                    try {
+                        received.flush();
+                    } catch (IOException x) {
+                        if (failure == null) {
+                            failure = x;
+                        }
+                    }
+                    inflater.end();
+                    recordCompressedTransfer(received.getByteCount(), cos.getByteCount());
+                }
+                if (failure != null) {
+                    throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Streams captured output, so that neither side need hold all of it in memory.
+         */
+        private static class GetOutput extends MasterToSlaveFileCallable<Void> {
             private final String charset;
-            GetOutput(String charset) {
+            private final boolean compress;
+            private final OutputStream sink;
+            GetOutput(String charset, boolean compress, OutputStream sink) {
                 this.charset = charset;
+                this.compress = compress;
+                this.sink = sink;
             }
             @Override
-            public byte[] invoke(File file, VirtualChannel vc) throws IOException, InterruptedException {
-                byte[] buf = FileUtils.readFileToByteArray(file);
-                ByteBuffer transcoded = maybeTranscode(buf, charset);
-                if (transcoded == null) {
-                    return buf;
-                } else {
-                    byte[] buf2 = new byte[transcoded.remaining()];
-                    transcoded.get(buf2);
-                    return buf2;
-                }
+            public Void invoke(File file, VirtualChannel vc) throws IOException, InterruptedException {
+                copy(file, 0, file.length(), transcodingCharset(charset), true, compress, sink);
+                sink.flush();
+                return null;
             }
         }
 
         /**
-         * Transcode process output to UTF-8 if necessary.
-         * @param data output presumed to be in local encoding
-         * @param charset a particular encoding name, or the empty string for the system default encoding, or null to skip transcoding
-         * @return a buffer of UTF-8 encoded data ({@link CodingErrorAction#REPLACE} is used),
-         *         or null if not performing transcoding because it was not requested or the data was already thought to be in UTF-8
+         * Opens captured output for reading, from the agent side.
+         * @param transcoder to use if {@link #charset} calls for transcoding
          */
-        private static @CheckForNull ByteBuffer maybeTranscode(@Nonnull byte[] data, @CheckForNull String charset) {
-            Charset cs = transcodingCharset(charset);
-            if (cs == null) {
-                return null;
-            } else {
-                return StandardCharsets.UTF_8.encode(cs.decode(ByteBuffer.wrap(data)));
+        private InputStream readOutput(FilePath workspace, @CheckForNull Transcoder transcoder) throws IOException, InterruptedException {
+            InputStream raw = new FileInputStream(getOutputFile(workspace).getRemote());
+            if (transcoder == null) {
+                return raw;
             }
+            return new FilterInputStream(transcoder.transcode(raw, true)) {
+                @Override public void close() throws IOException {
+                    raw.close();
+                }
+            };
+        }
+
+        private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+
+        private static void recordCompressedTransfer(long compressed, long uncompressed) {
+            compressedBytesReceived.addAndGet(compressed);
+            uncompressedBytesReceived.addAndGet(uncompressed);
+            LOGGER.log(Level.FINE, "received {0} bytes compressed to {1}", new Object[] {uncompressed, compressed});
         }
 
         private static @CheckForNull Charset transcodingCharset(@CheckForNull String charset) {
@@ -377,6 +1101,152 @@ public abstract class FileMonitoringTask extends DurableTask {
             }
         }
 
+        @Override public CompletableFuture<Void> cleanupAsync(FilePath workspace) {
+            FilePath cd;
+            try {
+                cd = controlDir(workspace);
+            } catch (IOException | InterruptedException x) {
+                return failedFuture(x);
+            }
+            return actAsync(cd, new DeleteRecursive()).thenRun(() -> {
+                if (cleanupList != null) {
+                    cleanupList.stream().forEach(IOUtils::closeQuietly);
+                }
+            });
+        }
+
+        private static final class DeleteRecursive extends MasterToSlaveFileCallable<Void> {
+            private static final long serialVersionUID = 1L;
+            @Override public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+                Util.deleteRecursive(f);
+                return null;
+            }
+        }
+
+        /**
+         * Like {@link FilePath#act} but not blocking the caller during the round trip.
+         * The agent reports the outcome through an exported {@link AsyncCompletion}, so no thread on the master waits meanwhile.
+         * Cancelling the future cancels the remote call.
+         * Should the call fail before the agent can report anything, {@link CallCheck} notices.
+         */
+        private static <T> CompletableFuture<T> actAsync(FilePath file, MasterToSlaveFileCallable<T> callable) {
+            VirtualChannel channel = file.getChannel();
+            if (!(channel instanceof Channel)) { // local
+                return supplyAsync(() -> file.act(callable));
+            }
+            Channel ch = (Channel) channel;
+            CompletableFuture<T> future = new CompletableFuture<>();
+            Channel.Listener onClose = new Channel.Listener() {
+                @Override public void onClosed(Channel c, IOException cause) {
+                    future.completeExceptionally(cause != null ? cause : new IOException("channel " + c.getName() + " closed"));
+                }
+            };
+            ch.addListener(onClose);
+            try {
+                @SuppressWarnings("unchecked")
+                AsyncCompletion<T> completion = ch.export(AsyncCompletion.class, new FutureCompletion<>(future));
+                Future<Void> call = ch.callAsync(new ActAsync<>(file.getRemote(), callable, completion));
+                new CallCheck<>(call, future).schedule();
+                future.whenComplete((v, t) -> {
+                    ch.removeListener(onClose);
+                    if (future.isCancelled()) {
+                        call.cancel(true);
+                    }
+                });
+            } catch (IOException x) {
+                ch.removeListener(onClose);
+                future.completeExceptionally(x);
+            }
+            return future;
+        }
+
+        private static <T> CompletableFuture<T> failedFuture(Throwable x) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(x);
+            return future;
+        }
+
+        /** Runs a file callable on the agent for {@link #actAsync}, reporting back through a callback rather than a return value. */
+        private static final class ActAsync<T> extends MasterToSlaveCallable<Void, RuntimeException> {
+            private static final long serialVersionUID = 1L;
+            private final String path;
+            private final MasterToSlaveFileCallable<T> callable;
+            private final AsyncCompletion<T> completion;
+            ActAsync(String path, MasterToSlaveFileCallable<T> callable, AsyncCompletion<T> completion) {
+                this.path = path;
+                this.callable = callable;
+                this.completion = completion;
+            }
+            @Override public Void call() throws RuntimeException {
+                T result;
+                try {
+                    result = callable.invoke(new File(path), getChannelOrFail());
+                } catch (Throwable x) {
+                    fail(x);
+                    return null;
+                }
+                try {
+                    completion.complete(result);
+                } catch (Throwable x) { // for example if the result cannot be serialized
+                    fail(x);
+                }
+                return null;
+            }
+            private void fail(Throwable x) {
+                try {
+                    completion.fail(x);
+                } catch (Throwable x2) { // for example if the exception cannot be serialized
+                    completion.fail(new IOException(x.toString()));
+                }
+            }
+        }
+
+        /**
+         * Periodically looks at the remote call made by {@link #actAsync} until it is over.
+         * It might fail outside {@link ActAsync#call}, for example loading classes or checking roles, in which case nothing else would complete the future.
+         * If it returns normally, the outcome has already been sent back ahead of the response, and only a closed channel could stop it arriving.
+         */
+        private static final class CallCheck<T> implements Runnable {
+            private final Future<Void> call;
+            private final CompletableFuture<T> future;
+            CallCheck(Future<Void> call, CompletableFuture<T> future) {
+                this.call = call;
+                this.future = future;
+            }
+            void schedule() {
+                Timer.get().schedule(this, ACT_ASYNC_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            @Override public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                if (!call.isDone()) {
+                    schedule();
+                    return;
+                }
+                try {
+                    call.get();
+                } catch (ExecutionException x) {
+                    future.completeExceptionally(x.getCause() != null ? x.getCause() : x);
+                } catch (InterruptedException | CancellationException x) {
+                    future.completeExceptionally(x);
+                }
+            }
+        }
+
+        private static final class FutureCompletion<T> implements AsyncCompletion<T> {
+            private final CompletableFuture<T> future;
+            FutureCompletion(CompletableFuture<T> future) {
+                this.future = future;
+            }
+            @Override public void complete(T value) {
+                future.complete(value);
+            }
+            @Override public void fail(Throwable failure) {
+                future.completeExceptionally(failure);
+            }
+        }
+
         /**
          * Directory in which this controller can place files.
          * Unique among all the controllers sharing the same workspace.
@@ -424,6 +1294,14 @@ public abstract class FileMonitoringTask extends DurableTask {
             String location = node != null ? cd.getRemote() + " on " + node : cd.getRemote();
             StringWriter w = new StringWriter();
             Integer code = exitStatus(workspace, launcher, new StreamTaskListener(w));
+            String statistics = cd.act(new WatchStatistics());
+            if (statistics != null) {
+                location += " (" + statistics + ")";
+            }
+            WatchState state = cd.act(new GetWatchState());
+            if (state != null) {
+                location += "; watch " + state.name().toLowerCase(Locale.ENGLISH).replace('_', ' ');
+            }
             if (code != null) {
                 return w + "completed process (code " + code + ") in " + location;
             } else {
@@ -436,6 +1314,10 @@ public abstract class FileMonitoringTask extends DurableTask {
             LOGGER.log(Level.FINE, "started asynchronous watch in {0}", controlDir);
         }
 
+        @Override public @CheckForNull WatchState getWatchState(FilePath workspace) throws IOException, InterruptedException {
+            return controlDir(workspace).act(new GetWatchState());
+        }
+
         /**
          * File in which a last-read position is stored if {@link #watch} is used.
          */
@@ -446,19 +1328,245 @@ public abstract class FileMonitoringTask extends DurableTask {
         private static final long serialVersionUID = 1L;
     }
 
-    private static ScheduledExecutorService watchService;
-    private synchronized static ScheduledExecutorService watchService() {
+    private static ScheduledThreadPoolExecutor watchService;
+    private synchronized static ScheduledThreadPoolExecutor watchService() {
         if (watchService == null) {
             // TODO 2.105+ use ClassLoaderSanityThreadFactory
             watchService = new /*ErrorLogging*/ScheduledThreadPoolExecutor(5, new NamingThreadFactory(new DaemonThreadFactory(), "FileMonitoringTask watcher"));
         }
         return watchService;
     }
+    private synchronized static void resizeWatchService(int poolSize) {
+        if (poolSize > 0 && watchService().getCorePoolSize() != poolSize) {
+            LOGGER.log(Level.FINE, "using {0} watcher threads", poolSize);
+            watchService().setCorePoolSize(poolSize);
+        }
+    }
+    /** Runs {@link Watcher#check} on virtual threads, if so configured and supported; else {@link #watchService} is used. */
+    private static ExecutorService checkService;
+    private synchronized static ExecutorService checkService() {
+        return checkService != null ? checkService : watchService();
+    }
+    private synchronized static void useVirtualThreads() {
+        if (checkService == null) {
+            checkService = newVirtualThreadExecutor();
+            if (checkService != null) {
+                LOGGER.fine("checking watched processes on virtual threads");
+            }
+        }
+    }
+
+    /**
+     * @return the feature version of the running Java, such as 8 or 21
+     */
+    static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        try {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        } catch (NumberFormatException x) {
+            return 8;
+        }
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task.
+     * Uses reflection since this plugin must still run on Java 8.
+     * @return null unless running on Java 21 or newer
+     */
+    static @CheckForNull ExecutorService newVirtualThreadExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "FileMonitoringTask watcher ", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException x) {
+            return null; // older Java
+        } catch (ReflectiveOperationException | RuntimeException x) { // say, a preview feature in Java 19 or 20
+            LOGGER.log(Level.FINE, "virtual threads unavailable", x);
+            return null;
+        }
+    }
+
     @Terminator public static synchronized void shutDownWatchService() {
         if (watchService != null) {
             watchService.shutdownNow();
             watchService = null;
         }
+        if (checkService != null) {
+            checkService.shutdownNow();
+            checkService = null;
+        }
+        sweep = null;
+        wheel = null;
+        watchers.clear();
+        deadWatchers.clear();
+        ControlDirNotifier.shutDown();
+    }
+
+    /** All active watchers in this JVM. */
+    private static final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+    /** Watchers which gave up after a failure, by control directory, until watched again or cleaned up. */
+    private static final Map<File, Watcher> deadWatchers = new ConcurrentHashMap<>();
+    private static ScheduledFuture<?> sweep;
+    /** Number of ticks in {@link #wheel}; at the default tick of 100ms, it turns about once a minute. */
+    private static final int WHEEL_SIZE = 512;
+    /** Holds each watcher until its next check is due. */
+    private static volatile TimerWheel<Watcher> wheel;
+
+    private static synchronized void register(Watcher watcher, long tick) {
+        for (Watcher existing : watchers) {
+            if (existing.controlDir.equals(watcher.controlDir)) { // watch called again, say after a reconnection
+                existing.stop();
+            }
+        }
+        watchers.add(watcher);
+        deadWatchers.keySet().removeIf(dir -> dir.equals(watcher.controlDir) || !dir.isDirectory());
+        if (sweep == null) {
+            wheel = new TimerWheel<>(TimeUnit.MILLISECONDS.toNanos(tick), WHEEL_SIZE, System.nanoTime());
+            sweep = watchService().scheduleWithFixedDelay(FileMonitoringTask::sweep, tick, tick, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Looks over the watchers due for a check in a single pass,
+     * and only dispatches the full {@link Watcher#check} for those whose control directory changed,
+     * so that the cost of watching scales with the amount of output rather than the number of running processes.
+     */
+    private static void sweep() {
+        TimerWheel<Watcher> w = wheel;
+        if (w == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Watcher watcher : w.expire(now)) {
+            try {
+                if (!watcher.done && watcher.checkRequests.get() == 0) { // otherwise the running check will reschedule it
+                    if (watcher.hasChanged(now)) {
+                        watcher.requestCheck();
+                    }
+                }
+            } catch (RuntimeException x) { // do not let one watcher cancel the sweep for all
+                LOGGER.log(Level.WARNING, "failed to check " + watcher.controller.controlDir, x);
+            }
+        }
+    }
+
+    /** Number of {@link Watcher#check} dispatches in this JVM. */
+    private static final AtomicLong watchDispatches = new AtomicLong();
+    /** Total time dispatches spent waiting for a free thread. */
+    private static final AtomicLong watchQueueNanos = new AtomicLong();
+    /** Longest time any dispatch spent waiting for a free thread. */
+    private static final AtomicLong maxWatchQueueNanos = new AtomicLong();
+
+    private static void recordQueueWait(long nanos) {
+        watchDispatches.incrementAndGet();
+        watchQueueNanos.addAndGet(nanos);
+        maxWatchQueueNanos.accumulateAndGet(nanos, Math::max);
+        LOGGER.log(Level.FINER, "watcher check waited {0}ns for a thread", nanos);
+    }
+
+    /**
+     * Looks up the state of the watcher, if any, for a control directory.
+     */
+    private static final class GetWatchState extends MasterToSlaveFileCallable<Controller.WatchState> {
+        private static final long serialVersionUID = 1L;
+        @Override public @CheckForNull Controller.WatchState invoke(File controlDir, VirtualChannel channel) {
+            for (Watcher watcher : watchers) {
+                if (watcher.controlDir.equals(controlDir)) {
+                    return watcher.state;
+                }
+            }
+            Watcher dead = deadWatchers.get(controlDir);
+            if (dead != null) {
+                if (controlDir.isDirectory()) {
+                    return dead.state;
+                }
+                deadWatchers.remove(controlDir);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Summarizes how long watchers on an agent wait for a thread, to help tune {@link #WATCH_POOL_SIZE} and {@link #WATCH_BYTE_BUDGET}.
+     */
+    private static final class WatchStatistics extends MasterToSlaveCallable<String, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+        @Override public @CheckForNull String call() {
+            long dispatches = watchDispatches.get();
+            if (dispatches == 0) {
+                return null;
+            }
+            String threads = checkService() instanceof ScheduledThreadPoolExecutor ? watchService().getCorePoolSize() + " threads" : "virtual threads";
+            return String.format("%d watched processes on %s; checks waited %.1fms on average, %.1fms at most",
+                watchers.size(), threads, watchQueueNanos.get() / 1e6 / dispatches, maxWatchQueueNanos.get() / 1e6);
+        }
+    }
+
+    /**
+     * Callables sent to agents by every controller, worth loading ahead of the first use.
+     * @see PreloadClasses
+     */
+    static List<Class<?>> hotCallables() {
+        return Arrays.asList(FileMonitoringController.WriteLog.class, FileMonitoringController.WriteLogResult.class, FileMonitoringController.StatusCheck.class, StartWatching.class);
+    }
+
+    /**
+     * Loads classes on an agent ahead of time, so that the first call to use them need not wait for them to be sent over the channel.
+     */
+    static final class PreloadClasses extends MasterToSlaveCallable<Void, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+        private final List<String> names = new ArrayList<>();
+        PreloadClasses(Collection<Class<?>> classes) {
+            for (Class<?> c : classes) {
+                names.add(c.getName());
+            }
+        }
+        @Override public Void call() {
+            ClassLoader loader = PreloadClasses.class.getClassLoader();
+            for (String name : names) {
+                try {
+                    Class.forName(name, false, loader);
+                } catch (ClassNotFoundException | LinkageError x) {
+                    LOGGER.log(Level.FINE, "could not preload " + name, x);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Computes how long a watcher should wait between checks:
+     * a minimum while the process is producing output, growing exponentially to a ceiling while it is idle.
+     */
+    static final class PollBackoff {
+
+        final long min;
+        final long max;
+        final double factor;
+        private long current;
+
+        PollBackoff(long min, long max, double factor) {
+            this.min = Math.max(1, min);
+            this.max = Math.max(this.min, max);
+            this.factor = factor;
+            current = this.min;
+        }
+
+        /**
+         * @param active whether the last check found new output
+         * @return milliseconds to wait before the next check
+         */
+        synchronized long next(boolean active) {
+            if (active) {
+                current = min;
+            } else {
+                current = Math.min(max, (long) Math.ceil(current * factor));
+            }
+            return current;
+        }
+
     }
 
     private static class StartWatching extends MasterToSlaveFileCallable<Void> {
@@ -468,79 +1576,363 @@ public abstract class FileMonitoringTask extends DurableTask {
         private final FileMonitoringController controller;
         private final Handler handler;
         private final TaskListener listener;
+        private final long minPollInterval;
+        private final long maxPollInterval;
+        private final double pollBackoff;
+        private final boolean fileNotifications;
+        private final long fallbackPollInterval;
+        private final long byteBudget;
+        private final long coalesceBytes;
+        private final long coalesceDelay;
+        private final int retries;
+        private final long retryDelay;
+        private final int poolSize;
+        private final @CheckForNull String virtualThreads;
 
         StartWatching(FileMonitoringController controller, Handler handler, TaskListener listener) {
             this.controller = controller;
             this.handler = handler;
             this.listener = listener;
+            minPollInterval = WATCH_MIN_POLL_INTERVAL;
+            maxPollInterval = WATCH_MAX_POLL_INTERVAL;
+            pollBackoff = WATCH_POLL_BACKOFF;
+            fileNotifications = WATCH_FILE_NOTIFICATIONS;
+            fallbackPollInterval = WATCH_FALLBACK_POLL_INTERVAL;
+            byteBudget = WATCH_BYTE_BUDGET;
+            coalesceBytes = WATCH_COALESCE_BYTES;
+            coalesceDelay = WATCH_COALESCE_DELAY;
+            retries = WATCH_RETRIES;
+            retryDelay = WATCH_RETRY_DELAY;
+            poolSize = WATCH_POOL_SIZE;
+            virtualThreads = WATCH_VIRTUAL_THREADS;
         }
 
         @Override public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
-            watchService().submit(new Watcher(controller, new FilePath(workspace), handler, listener));
+            Watcher watcher = new Watcher(controller, new FilePath(workspace), handler, listener);
+            watcher.pollBackoff = new PollBackoff(minPollInterval, maxPollInterval, pollBackoff);
+            watcher.byteBudget = Math.max(1, byteBudget);
+            watcher.coalesceBytes = coalesceBytes;
+            watcher.coalesceDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, coalesceDelay));
+            watcher.retries = retries;
+            watcher.retryDelay = Math.max(1, retryDelay);
+            resizeWatchService(poolSize);
+            if (virtualThreads != null ? Boolean.parseBoolean(virtualThreads) : javaVersion() >= 24) {
+                useVirtualThreads();
+            }
+            if (fileNotifications) {
+                watcher.notifyOnChanges(fallbackPollInterval);
+            }
+            register(watcher, watcher.pollBackoff.min);
+            watcher.requestCheck();
             return null;
         }
 
     }
 
-    private static class Watcher implements Runnable {
+    private static class Watcher {
+
+        /**
+         * Longest time to go without a full {@link #check} even if nothing seems to have changed,
+         * so that {@link FileMonitoringController#exitStatus(FilePath, TaskListener)} may apply its own heuristics.
+         */
+        private static final long FULL_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(10);
 
         private final FileMonitoringController controller;
         private final FilePath workspace;
         private final Handler handler;
         private final TaskListener listener;
-        private final @CheckForNull Charset cs;
+        private final @CheckForNull Transcoder transcoder;
+        private final File logFile;
+        private final File resultFile;
+        private final File controlDir;
+        private final FilePath lastLocationFile;
+        private long byteBudget = Long.MAX_VALUE;
+        /** @see #WATCH_COALESCE_BYTES */
+        private long coalesceBytes;
+        /** {@link #WATCH_COALESCE_DELAY} in nanoseconds. */
+        private long coalesceDelay;
+        /** Whether the last {@link #check} held back output per {@link #coalesceBytes}. */
+        private volatile boolean holding;
+        /** {@link System#nanoTime} by which held output must be delivered. */
+        private volatile long holdDeadline;
+        /** @see #WATCH_RETRIES */
+        private int retries;
+        /** @see #WATCH_RETRY_DELAY */
+        private long retryDelay = 1000;
+        /** Consecutive failed {@link #check}s. */
+        private int failures;
+        /** {@link System#nanoTime} of the next retry while {@link Controller.WatchState#BACKING_OFF}. */
+        private volatile long retryAt;
+        private volatile Controller.WatchState state = Controller.WatchState.STREAMING;
+        private PollBackoff pollBackoff = new PollBackoff(100, 100, 1);
+        /** Registration with {@link ControlDirNotifier}, if any. */
+        private @CheckForNull Closeable notifications;
+        /** Byte offset in the log file handled thus far, as recorded in {@link FileMonitoringController#getLastLocationFile}. */
+        private volatile long lastLocation;
+        /** Whether the last {@link #check} found new output. */
+        private volatile boolean sawOutput;
+        /** Whether {@link #notified} was called since the last {@link #check} started. */
+        private volatile boolean notified;
+        /** Whether the last {@link #check} left output behind after using up {@link #byteBudget}. */
+        private volatile boolean backlog;
+        /** {@link System#nanoTime} at which {@link #sweep} should next look at this directory. */
+        private volatile long nextCheck;
+        /** Entry for {@link #nextCheck} in {@link #wheel}. */
+        private TimerWheel.Timeout<Watcher> timeout;
+        /** {@link System#nanoTime} of the last {@link #check}. */
+        private volatile long lastFullCheck;
+        /** Number of outstanding requests to {@link #check}, so that only one thread does so at a time. */
+        private final AtomicInteger checkRequests = new AtomicInteger();
+        private volatile boolean done;
 
-        Watcher(FileMonitoringController controller, FilePath workspace, Handler handler, TaskListener listener) {
+        Watcher(FileMonitoringController controller, FilePath workspace, Handler handler, TaskListener listener) throws IOException, InterruptedException {
             this.controller = controller;
             this.workspace = workspace;
             this.handler = handler;
             this.listener = listener;
-            cs = FileMonitoringController.transcodingCharset(controller.charset);
+            Charset cs = FileMonitoringController.transcodingCharset(controller.charset);
             LOGGER.log(Level.FINE, "remote transcoding charset: {0}", cs);
+            transcoder = cs == null ? null : new Transcoder(cs);
+            assert !workspace.isRemote();
+            logFile = new File(controller.getLogFile(workspace).getRemote());
+            resultFile = new File(controller.getResultFile(workspace).getRemote());
+            controlDir = new File(controller.controlDir(workspace).getRemote());
+            lastLocationFile = controller.getLastLocationFile(workspace);
+            long acknowledged = handler instanceof OutputMultiplexer.MultiplexedHandler ? ((OutputMultiplexer.MultiplexedHandler) handler).getAcknowledged() : -1;
+            if (acknowledged >= 0) { // the master knows better than last-location.txt what it actually received
+                lastLocation = acknowledged;
+            } else if (lastLocationFile.exists()) {
+                lastLocation = Long.parseLong(lastLocationFile.readToString());
+            }
+            nextCheck = lastFullCheck = System.nanoTime();
         }
 
-        @Override public void run() {
+        /**
+         * Arranges to be woken up as soon as the log or result file changes,
+         * so that regular polling is only a safety net for filesystems which do not deliver notifications.
+         */
+        void notifyOnChanges(long fallbackPollInterval) {
+            ControlDirNotifier notifier = ControlDirNotifier.get();
+            if (notifier == null) {
+                return;
+            }
+            Set<String> fileNames = new HashSet<>(Arrays.asList(logFile.getName(), resultFile.getName()));
             try {
-                Integer exitStatus = controller.exitStatus(workspace, listener); // check before collecting output, in case the process is just now finishing
-                long lastLocation = 0;
-                FilePath lastLocationFile = controller.getLastLocationFile(workspace);
-                if (lastLocationFile.exists()) {
-                    lastLocation = Long.parseLong(lastLocationFile.readToString());
+                notifications = notifier.register(controlDir.toPath(), fileNames, this::notified);
+                pollBackoff = new PollBackoff(pollBackoff.min, fallbackPollInterval, pollBackoff.factor);
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "cannot receive notifications about " + controller.controlDir + ", polling instead", x);
+            }
+        }
+
+        /**
+         * Handles a notification from {@link ControlDirNotifier} by bringing the next check forward if this watcher is idle or backed off,
+         * though to no sooner than {@link #WATCH_MIN_POLL_INTERVAL} after the last check,
+         * so that a process writing constantly is checked no more often than it would be when polling.
+         * Does not cut short a retry delay, nor the accumulation of output per {@link #coalesceBytes}.
+         */
+        void notified() {
+            if (done || state == Controller.WatchState.BACKING_OFF) {
+                return;
+            }
+            if (holding && logFile.length() - lastLocation < coalesceBytes) {
+                return;
+            }
+            notified = true; // in case a check is running, so that it schedules the next one promptly
+            if (checkRequests.get() != 0) {
+                return;
+            }
+            synchronized (this) {
+                long earliest = lastFullCheck + TimeUnit.MILLISECONDS.toNanos(pollBackoff.min);
+                long now = System.nanoTime();
+                long when = earliest - now > 0 ? earliest : now;
+                if (nextCheck - when > 0) {
+                    nextCheck = when;
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * Cheaply looks for anything which would require a full {@link #check}.
+         * A pending retry always does; {@link #requestCheck} holds it until {@link #retryAt}.
+         * If there is nothing, backs off.
+         */
+        boolean hasChanged(long now) {
+            if (state == Controller.WatchState.BACKING_OFF || logFile.length() > lastLocation || resultFile.length() > 0 || !controlDir.isDirectory() || now - lastFullCheck >= FULL_CHECK_INTERVAL) {
+                return true;
+            }
+            nextCheck = now + TimeUnit.MILLISECONDS.toNanos(pollBackoff.next(false));
+            schedule();
+            return false;
+        }
+
+        /**
+         * Puts this watcher on {@link #wheel} for {@link #nextCheck}, replacing any earlier entry.
+         */
+        private synchronized void schedule() {
+            TimerWheel<Watcher> w = wheel;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            if (w != null && !done) {
+                timeout = w.schedule(this, nextCheck);
+            }
+        }
+
+        /**
+         * Schedules a {@link #check}, or if one is already running, asks it to check once more afterwards.
+         */
+        void requestCheck() {
+            if (state == Controller.WatchState.BACKING_OFF && System.nanoTime() - retryAt < 0) {
+                // The wheel may expire an entry up to a tick early; put it back rather than dropping it.
+                synchronized (this) {
+                    nextCheck = retryAt;
+                    schedule();
                 }
-                FilePath logFile = controller.getLogFile(workspace);
+                return;
+            }
+            if (!done && checkRequests.getAndIncrement() == 0) {
+                dispatch();
+            }
+        }
+
+        private void dispatch() {
+            long queued = System.nanoTime();
+            checkService().submit(() -> {
+                recordQueueWait(System.nanoTime() - queued);
+                drainCheckRequests();
+            });
+        }
+
+        private void drainCheckRequests() {
+            int handled;
+            do {
+                handled = checkRequests.get();
+                if (!done) {
+                    notified = false;
+                    if (check()) {
+                        long now = System.nanoTime();
+                        lastFullCheck = now;
+                        // If notified during the check, there may be more to do soon.
+                        nextCheck = now + TimeUnit.MILLISECONDS.toNanos(pollBackoff.next(sawOutput || notified));
+                        if (holding && holdDeadline - nextCheck < 0) {
+                            nextCheck = holdDeadline;
+                        }
+                        if (state == Controller.WatchState.BACKING_OFF) {
+                            nextCheck = retryAt;
+                        }
+                        if (backlog && state == Controller.WatchState.STREAMING) {
+                            // Give up the thread and queue up behind other watchers; one request stays outstanding for the rest of the output.
+                            checkRequests.addAndGet(1 - handled);
+                            dispatch();
+                            return;
+                        }
+                    } else {
+                        stop();
+                    }
+                }
+            } while (checkRequests.addAndGet(-handled) != 0);
+            // Only now that this watcher no longer looks busy, else sweep could expire the entry and skip it.
+            schedule();
+        }
+
+        void stop() {
+            done = true;
+            watchers.remove(this);
+            schedule(); // cancels
+            if (notifications != null) {
+                IOUtils.closeQuietly(notifications);
+            }
+            if (handler instanceof OutputMultiplexer.MultiplexedHandler) {
+                ((OutputMultiplexer.MultiplexedHandler) handler).release();
+            }
+        }
+
+        /**
+         * Collects any new output and looks for an exit status.
+         * @return true to keep watching
+         */
+        private boolean check() {
+            try {
+                Integer exitStatus = controller.exitStatus(workspace, listener); // check before collecting output, in case the process is just now finishing
                 long len = logFile.length();
+                sawOutput = len > lastLocation;
+                backlog = false;
+                if (len > lastLocation && exitStatus == null && len - lastLocation < coalesceBytes) {
+                    long now = System.nanoTime();
+                    if (!holding) {
+                        holding = true;
+                        holdDeadline = now + coalesceDelay;
+                    }
+                    if (now - holdDeadline < 0) {
+                        return true; // wait for more output to accumulate
+                    }
+                }
+                holding = false;
                 if (len > lastLocation) {
-                    assert !logFile.isRemote();
-                    try (FileChannel ch = FileChannel.open(Paths.get(logFile.getRemote()), StandardOpenOption.READ)) {
+                    try (FileChannel ch = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
                         InputStream locallyEncodedStream = Channels.newInputStream(ch.position(lastLocation));
-                        InputStream utf8EncodedStream = cs == null ? locallyEncodedStream : new ReaderInputStream(new InputStreamReader(locallyEncodedStream, cs), StandardCharsets.UTF_8);
-                        handler.output(utf8EncodedStream);
-                        long newLocation = ch.position();
+                        boolean bounded = len - lastLocation > byteBudget;
+                        if (bounded) {
+                            BoundedInputStream bis = new BoundedInputStream(locallyEncodedStream, byteBudget);
+                            bis.setPropagateClose(false);
+                            locallyEncodedStream = bis;
+                        }
+                        // Once the process has exited, the log is complete, so there is no point holding back an incomplete character.
+                        InputStream utf8EncodedStream = transcoder == null ? locallyEncodedStream : transcoder.transcode(locallyEncodedStream, exitStatus != null && !bounded, ch, lastLocation);
+                        if (handler instanceof OutputMultiplexer.MultiplexedHandler) {
+                            ((OutputMultiplexer.MultiplexedHandler) handler).output(utf8EncodedStream, lastLocation, () -> {
+                                try {
+                                    return ch.position() - (transcoder == null ? 0 : transcoder.pending());
+                                } catch (IOException x) {
+                                    return -1;
+                                }
+                            });
+                        } else {
+                            handler.output(utf8EncodedStream);
+                        }
+                        long newLocation = ch.position() - (transcoder == null ? 0 : transcoder.pending()); // reread any incomplete character next time
                         lastLocationFile.write(Long.toString(newLocation), null);
                         LOGGER.log(Level.FINE, "copied {0} bytes from {1}", new Object[] {newLocation - lastLocation, logFile});
+                        backlog = bounded && newLocation > lastLocation;
+                        lastLocation = newLocation;
                     }
                 }
-                if (exitStatus != null) {
-                    byte[] output;
+                failures = 0;
+                state = Controller.WatchState.STREAMING;
+                if (backlog) {
+                    return true; // report the exit status only once the rest of the output has been delivered
+                } else if (exitStatus != null) {
+                    LOGGER.log(Level.FINE, "exiting with code {0}", exitStatus);
                     if (controller.getOutputFile(workspace).exists()) {
-                        output = controller.getOutput(workspace);
+                        try (InputStream output = controller.readOutput(workspace, transcoder)) {
+                            handler.exitedStreaming(exitStatus, output);
+                        }
                     } else {
-                        output = null;
+                        handler.exitedStreaming(exitStatus, null);
                     }
-                    LOGGER.log(Level.FINE, "exiting with code {0}", exitStatus);
-                    handler.exited(exitStatus, output);
                     controller.cleanup(workspace);
+                    return false;
+                } else if (!controlDir.isDirectory()) {
+                    LOGGER.log(Level.WARNING, "giving up on watching nonexistent {0}", controller.controlDir);
+                    controller.cleanup(workspace);
+                    return false;
                 } else {
-                    if (!controller.controlDir(workspace).isDirectory()) {
-                        LOGGER.log(Level.WARNING, "giving up on watching nonexistent {0}", controller.controlDir);
-                        controller.cleanup(workspace);
-                        return;
-                    }
-                    // Could use an adaptive timeout as in DurableTaskStep.Execution in polling mode,
-                    // though less relevant here since there is no network overhead to the check.
-                    watchService().schedule(this, 100, TimeUnit.MILLISECONDS);
+                    return true;
                 }
             } catch (Exception x) {
+                if (isRetryable(x) && failures < retries) {
+                    long delay = retryDelay << Math.min(failures, 20);
+                    failures++;
+                    retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                    state = Controller.WatchState.BACKING_OFF;
+                    LOGGER.log(Level.INFO, "failed to watch " + controller.controlDir + "; retrying in " + delay + "ms", x);
+                    return true;
+                }
+                state = Controller.WatchState.DEAD;
+                deadWatchers.put(controlDir, this);
                 // note that LOGGER here is going to the agent log, not master log
                 LOGGER.log(Level.WARNING, "giving up on watching " + controller.controlDir, x);
                 // Typically this will have been inside Handler.output, e.g.:
@@ -553,12 +1945,30 @@ public abstract class FileMonitoringTask extends DurableTask {
                 //         at org.apache.commons.io.IOUtils.copy(IOUtils.java:1744)
                 //         at org.jenkinsci.plugins.workflow.steps.durable_task.DurableTaskStep$HandlerImpl.output(DurableTaskStep.java:503)
                 //         at org.jenkinsci.plugins.durabletask.FileMonitoringTask$Watcher.run(FileMonitoringTask.java:477)
-                // Thus we assume the log sink is hopeless and the Watcher task dies.
+                // Once the channel is closed, we assume the log sink is hopeless and the Watcher task dies;
+                // other I/O errors are retried a few times above, in case they are transient.
                 // If and when the agent is reconnected, a new watch call will be made and we will resume streaming.
                 // last-location.txt will record the last successfully written block of output;
                 // we cannot know reliably how much of the problematic block was actually received by the sink,
                 // so we err on the side of possibly duplicating text rather than losing text.
+                // (An OutputMultiplexer handler avoids even that, as the master tells us where to resume.)
+                return false;
+            }
+        }
+
+        /**
+         * Whether a failure in {@link #check} might go away by itself.
+         * A closed channel will not: the handler is tied to it, and a new watch will be started on reconnection.
+         * Nor will an {@link AbortException}, such as a multiplexed receiver which has failed or is gone.
+         * Exceptions other than {@link IOException} are taken to be a rejection by the handler.
+         */
+        static boolean isRetryable(Throwable x) {
+            for (Throwable t = x; t != null; t = t.getCause()) {
+                if (t instanceof ChannelClosedException || t instanceof InterruptedException || t instanceof AbortException) {
+                    return false;
+                }
             }
+            return x instanceof IOException;
         }
 
     }
@@ -29,8 +29,10 @@ import hudson.Launcher;
 import hudson.remoting.VirtualChannel;
 import java.io.InputStream;
 import java.io.Serializable;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import org.apache.commons.io.IOUtils;
 
 /**
  * A remote handler which may be sent to an agent and handle process output and results.
@@ -64,4 +66,16 @@ public abstract class Handler implements Serializable { // TODO 2.107+ Serializa
      */
     public abstract void exited(int code, @Nullable byte[] output) throws Exception;
 
+    /**
+     * Notification that the process has exited or vanished, offering captured output as a stream.
+     * This is what {@link Controller#watch} implementations in this plugin call.
+     * Override it rather than {@link #exited(int, byte[])} if output may be too large to hold in memory.
+     * @param code as in {@link #exited(int, byte[])}
+     * @param output a way to read standard output captured, if {@link DurableTask#captureOutput} was called; else null; there is no need to close it
+     * @throws Exception if anything goes wrong, this watch is deactivated
+     */
+    public void exitedStreaming(int code, @CheckForNull InputStream output) throws Exception {
+        exited(code, output != null ? IOUtils.toByteArray(output) : null);
+    }
+
 }
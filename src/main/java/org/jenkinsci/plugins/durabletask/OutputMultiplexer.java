@@ -0,0 +1,535 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import hudson.AbortException;
+import hudson.model.Computer;
+import hudson.remoting.Asynchronous;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Carries output of all tasks {@linkplain Controller#watch watched} on an agent over one exported object,
+ * rather than each {@link Handler} exporting its own stream.
+ * Output from concurrent watchers is framed as (task id, offset, bytes) and sent in batches:
+ * while one batch is in flight, others queue up behind it and go out together in the next call.
+ * On the master, frames are dispatched to the {@link Receiver} registered for each task.
+ * Each receiver gets its output in order, but independently of the others, so one slow receiver does not hold up the rest.
+ * <p>Each frame also records the range of the raw log file it covers, and the master acknowledges frames as it accepts them.
+ * A receiver which keeps track of the end of the last range it accepted may pass it to {@link #handler(VirtualChannel, Receiver, long)}
+ * when watching again, say after the agent reconnects, so that streaming resumes exactly there: nothing is lost or sent twice.
+ */
+public final class OutputMultiplexer {
+
+    private static final Logger LOGGER = Logger.getLogger(OutputMultiplexer.class.getName());
+
+    /**
+     * Maximum number of bytes of output queued on the master for a {@link Receiver} which has not yet accepted it.
+     * Beyond that, the agent waits before sending more output for any task.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static long RECEIVER_BACKLOG = Long.getLong(OutputMultiplexer.class.getName() + ".RECEIVER_BACKLOG", 1024 * 1024);
+
+    /**
+     * Master-side counterpart of a {@link Handler}.
+     * Output is delivered on {@link Computer#threadPoolForRemoting}, exit status on a remoting thread.
+     */
+    public interface Receiver {
+
+        /**
+         * New output, as per {@link Handler#output}.
+         * @param data the output
+         * @param offset where it begins in the raw log file, or -1 if unknown
+         * @param end where it ends in the raw log file, or -1 if unknown; once this returns, the output up to here is acknowledged
+         * @throws Exception if anything goes wrong, this watch is deactivated
+         */
+        void output(byte[] data, long offset, long end) throws Exception;
+
+        /**
+         * As per {@link Handler#exited}.
+         * @throws Exception if anything goes wrong, this watch is deactivated
+         */
+        void exited(int code, @CheckForNull byte[] output) throws Exception;
+
+        /**
+         * As per {@link Handler#exitedStreaming}.
+         * Override it rather than {@link #exited(int, byte[])} if output may be too large to hold in memory.
+         * @param output a way to read standard output captured, if any; read from the agent as needed, so only valid during this call
+         * @throws Exception if anything goes wrong, this watch is deactivated
+         */
+        default void exitedStreaming(int code, @CheckForNull InputStream output) throws Exception {
+            exited(code, output != null ? IOUtils.toByteArray(output) : null);
+        }
+
+    }
+
+    /**
+     * Creates a handler to pass to {@link Controller#watch}.
+     * Create a fresh one for each call.
+     * @param channel the channel of the workspace to be watched
+     * @param receiver where output will be delivered
+     */
+    public static Handler handler(VirtualChannel channel, Receiver receiver) {
+        return handler(channel, receiver, -1);
+    }
+
+    /**
+     * Creates a handler to pass to {@link Controller#watch}, resuming from acknowledged output.
+     * @param channel the channel of the workspace to be watched
+     * @param receiver where output will be delivered
+     * @param acknowledged the last {@code end} passed to {@link Receiver#output} in an earlier watch of the same task,
+     *                     which takes precedence over whatever the agent recorded; or -1 to continue from wherever the agent left off
+     */
+    public static Handler handler(VirtualChannel channel, Receiver receiver, long acknowledged) {
+        Demultiplexer demux;
+        synchronized (demultiplexers) {
+            demux = demultiplexers.computeIfAbsent(channel, Demultiplexer::new);
+        }
+        return new MultiplexedHandler(demux.key, demux.exported, demux.register(receiver, acknowledged), acknowledged);
+    }
+
+    /**
+     * Finds how much output a receiver has accepted, to pass to {@link #handler(VirtualChannel, Receiver, long)} when watching again.
+     * @param handler as returned from {@link #handler(VirtualChannel, Receiver, long)} in this JVM
+     * @return the last {@code end} passed to {@link Receiver#output} which returned normally, else what the handler was created with
+     */
+    public static long acknowledged(Handler handler) {
+        if (handler instanceof MultiplexedHandler) {
+            Registration registration = ((MultiplexedHandler) handler).registration;
+            if (registration != null) {
+                return registration.acknowledged;
+            }
+        }
+        return -1;
+    }
+
+    /** One per channel. */
+    private static final Map<VirtualChannel, Demultiplexer> demultiplexers = new WeakHashMap<>();
+
+    /** Number of receivers still registered for a channel, for tests. */
+    static int receivers(VirtualChannel channel) {
+        Demultiplexer demux;
+        synchronized (demultiplexers) {
+            demux = demultiplexers.get(channel);
+        }
+        return demux != null ? demux.registrations.size() : 0;
+    }
+
+    /** One per {@link Demultiplexer}, on the agent side, keyed by {@link Demultiplexer#key}. */
+    private static final Map<String, Multiplexer> multiplexers = new ConcurrentHashMap<>();
+
+    /**
+     * Exported from the master to receive frames.
+     * Only public so that it may be exported over a channel.
+     */
+    @Restricted(NoExternalUse.class)
+    public interface FrameSink {
+
+        /**
+         * Queues frames for their receivers.
+         * @param frames encoded by {@link Multiplexer#encode}
+         * @return ids of any tasks whose receivers failed or are gone
+         */
+        Set<String> frames(byte[] frames) throws IOException;
+
+        /**
+         * Reports an exit status once any output queued for the receiver has been delivered.
+         * @param output a {@link RemoteInputStream}, if output was captured
+         * @return false if the receiver failed or is gone
+         */
+        boolean exited(String id, int code, @CheckForNull InputStream output) throws IOException;
+
+        /**
+         * Forgets a task which is no longer watched, say because it was watched again or cleaned up before exiting.
+         */
+        @Asynchronous void release(String id);
+
+    }
+
+    private static final class Demultiplexer implements FrameSink {
+
+        final String key = UUID.randomUUID().toString();
+        final FrameSink exported;
+        private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+        private final AtomicLong ids = new AtomicLong();
+
+        Demultiplexer(VirtualChannel channel) {
+            exported = channel.export(FrameSink.class, this);
+        }
+
+        Registration register(Receiver receiver, long acknowledged) {
+            Registration registration = new Registration(Long.toString(ids.incrementAndGet()), receiver, acknowledged);
+            registrations.put(registration.id, registration);
+            return registration;
+        }
+
+        @Override public Set<String> frames(byte[] frames) throws IOException {
+            Set<String> failed = new HashSet<>();
+            Map<String, Registration> offered = new HashMap<>();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames));
+            while (in.available() > 0) {
+                String id = in.readUTF();
+                long offset = in.readLong();
+                long end = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                Registration registration = registrations.get(id);
+                if (registration == null || !registration.offer(new Frame(id, offset, end, data))) {
+                    registrations.remove(id);
+                    failed.add(id);
+                    continue;
+                }
+                offered.put(id, registration);
+            }
+            // Only a receiver which has fallen far behind holds up this batch, and so later output from the agent.
+            for (Map.Entry<String, Registration> entry : offered.entrySet()) {
+                try {
+                    entry.getValue().awaitBacklog(RECEIVER_BACKLOG);
+                } catch (InterruptedException x) {
+                    throw (IOException) new InterruptedIOException().initCause(x);
+                }
+                if (entry.getValue().failed) {
+                    registrations.remove(entry.getKey());
+                    failed.add(entry.getKey());
+                }
+            }
+            return failed;
+        }
+
+        @Override public boolean exited(String id, int code, InputStream output) throws IOException {
+            Registration registration = registrations.remove(id);
+            if (registration == null) {
+                return false;
+            }
+            try {
+                registration.awaitBacklog(0);
+            } catch (InterruptedException x) {
+                throw (IOException) new InterruptedIOException().initCause(x);
+            }
+            if (registration.failed) {
+                return false;
+            }
+            try {
+                registration.receiver.exitedStreaming(code, output);
+                return true;
+            } catch (Exception x) {
+                LOGGER.log(Level.WARNING, "failed to deliver exit status to " + registration.receiver, x);
+                return false;
+            }
+        }
+
+        @Override public void release(String id) {
+            if (registrations.remove(id) != null) {
+                LOGGER.log(Level.FINE, "released receiver for {0}", id);
+            }
+        }
+
+    }
+
+    /**
+     * Master-side state of one watch.
+     * Frames are queued here and delivered in order by at most one thread at a time.
+     */
+    private static final class Registration {
+        final String id;
+        final Receiver receiver;
+        /** End of the last frame accepted by {@link #receiver}; see {@link #acknowledged(Handler)}. */
+        volatile long acknowledged;
+        /** End of the last frame queued, to drop duplicates. */
+        private long queued;
+        private final Queue<Frame> deliveries = new ArrayDeque<>();
+        /** Bytes in {@link #deliveries} or being delivered. */
+        private long backlog;
+        private boolean delivering;
+        /** Set once {@link #receiver} throws; nothing more is delivered. */
+        volatile boolean failed;
+        Registration(String id, Receiver receiver, long acknowledged) {
+            this.id = id;
+            this.receiver = receiver;
+            this.acknowledged = acknowledged;
+            this.queued = acknowledged;
+        }
+
+        /**
+         * @return false if the receiver has failed
+         */
+        synchronized boolean offer(Frame frame) {
+            if (failed) {
+                return false;
+            }
+            if (frame.end != -1 && frame.end <= queued) {
+                LOGGER.log(Level.FINE, "dropping duplicate output of {0} up to {1}", new Object[] {frame.id, frame.end});
+                return true;
+            }
+            queued = frame.end;
+            deliveries.add(frame);
+            backlog += frame.data.length;
+            if (!delivering) {
+                delivering = true;
+                Computer.threadPoolForRemoting.submit(this::deliver);
+            }
+            return true;
+        }
+
+        private void deliver() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = deliveries.poll();
+                    if (frame == null) {
+                        delivering = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+                boolean accepted = false;
+                try {
+                    receiver.output(frame.data, frame.offset, frame.end);
+                    acknowledged = frame.end;
+                    accepted = true;
+                } catch (Exception x) {
+                    LOGGER.log(Level.WARNING, "failed to deliver output to " + receiver, x);
+                }
+                synchronized (this) {
+                    backlog -= frame.data.length;
+                    if (!accepted) {
+                        failed = true;
+                        deliveries.clear();
+                        backlog = 0;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until no more than this many bytes remain to be delivered, or the receiver has failed.
+         * @param limit a number of bytes, or 0 to wait until everything queued has been delivered
+         */
+        synchronized void awaitBacklog(long limit) throws InterruptedException {
+            while ((backlog > limit || limit == 0 && delivering) && !failed) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Agent side of the handler.
+     * {@link #output} returns only once the master has received the frame, as with a handler writing to a remote stream.
+     */
+    static final class MultiplexedHandler extends Handler {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final FrameSink sink;
+        private final String id;
+        private final long acknowledged;
+        /** Only on the master. */
+        private final transient @CheckForNull Registration registration;
+
+        MultiplexedHandler(String key, FrameSink sink, Registration registration, long acknowledged) {
+            this.key = key;
+            this.sink = sink;
+            this.id = registration.id;
+            this.acknowledged = acknowledged;
+            this.registration = registration;
+        }
+
+        /**
+         * Where the watcher should start reading the log file.
+         * @return the offset acknowledged by the master, or -1 if unknown
+         */
+        long getAcknowledged() {
+            return acknowledged;
+        }
+
+        @Override public void output(InputStream stream) throws Exception {
+            output(stream, -1, () -> -1);
+        }
+
+        /**
+         * Like {@link #output(InputStream)} but recording which part of the log file the output came from.
+         * @param offset where it begins in the raw log file
+         * @param end where it ends in the raw log file, to be consulted once the stream has been read
+         */
+        void output(InputStream stream, long offset, LongSupplier end) throws IOException, InterruptedException {
+            byte[] data = IOUtils.toByteArray(stream);
+            multiplexers.computeIfAbsent(key, k -> new Multiplexer(k, sink)).send(new Frame(id, offset, end.getAsLong(), data));
+        }
+
+        /**
+         * Called on the agent when the watch is over for whatever reason, so that the master need not keep the receiver.
+         */
+        void release() {
+            try {
+                sink.release(id);
+            } catch (RuntimeException x) { // typically the channel is closed, taking the registration with it
+                LOGGER.log(Level.FINE, "could not release receiver for " + id, x);
+            }
+        }
+
+        @Override public void exited(int code, byte[] output) throws Exception {
+            exitedStreaming(code, output != null ? new ByteArrayInputStream(output) : null);
+        }
+
+        @Override public void exitedStreaming(int code, InputStream output) throws Exception {
+            // The master reads captured output during the call, so it need not all be held in memory on either side.
+            if (!sink.exited(id, code, output != null ? new RemoteInputStream(output, RemoteInputStream.Flag.NOT_GREEDY) : null)) {
+                throw new ReceiverGoneException(id);
+            }
+        }
+
+    }
+
+    /**
+     * Thrown on the agent when the master has no working {@link Receiver} for a task.
+     * Retrying would not help, so the watch gives up at once.
+     */
+    static final class ReceiverGoneException extends AbortException {
+        private static final long serialVersionUID = 1L;
+        ReceiverGoneException(String id) {
+            super("receiver for " + id + " failed or is gone");
+        }
+    }
+
+    private static final class Frame {
+        final String id;
+        final long offset;
+        final long end;
+        final byte[] data;
+        boolean done;
+        @CheckForNull IOException failure;
+        Frame(String id, long offset, long end, byte[] data) {
+            this.id = id;
+            this.offset = offset;
+            this.end = end;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Sends frames from all watchers to one {@link FrameSink}.
+     * Whichever thread finds no batch in flight sends everything queued so far; the others wait for it.
+     */
+    private static final class Multiplexer {
+
+        private final String key;
+        private final FrameSink sink;
+        private List<Frame> pending = new ArrayList<>();
+        private boolean sending;
+
+        Multiplexer(String key, FrameSink sink) {
+            this.key = key;
+            this.sink = sink;
+        }
+
+        void send(Frame frame) throws IOException, InterruptedException {
+            List<Frame> batch;
+            synchronized (this) {
+                pending.add(frame);
+                while (sending && !frame.done) {
+                    wait();
+                }
+                if (frame.done) {
+                    if (frame.failure != null) {
+                        throw frame.failure;
+                    }
+                    return;
+                }
+                sending = true;
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            IOException failure = null;
+            Set<String> failed = null;
+            try {
+                failed = sink.frames(encode(batch));
+            } catch (IOException | RuntimeException x) {
+                failure = x instanceof IOException ? (IOException) x : new IOException(x);
+                multiplexers.remove(key, this); // typically the channel is closed; a new watch will bring a new sink
+            }
+            synchronized (this) {
+                for (Frame f : batch) {
+                    f.done = true;
+                    if (failure != null) {
+                        f.failure = failure;
+                    } else if (failed.contains(f.id)) {
+                        f.failure = new ReceiverGoneException(f.id);
+                    }
+                }
+                sending = false;
+                notifyAll();
+            }
+            if (frame.failure != null) {
+                throw frame.failure;
+            }
+        }
+
+        static byte[] encode(List<Frame> frames) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            for (Frame frame : frames) {
+                out.writeUTF(frame.id);
+                out.writeLong(frame.offset);
+                out.writeLong(frame.end);
+                out.writeInt(frame.data.length);
+                out.write(frame.data);
+            }
+            out.flush();
+            return baos.toByteArray();
+        }
+
+    }
+
+    private OutputMultiplexer() {}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel: schedules an item in constant time, and on each tick touches only the slot of items which have come due,
+ * rather than keeping every pending item in a single heap contended by all threads rescheduling work.
+ * Items are expired by one caller invoking {@link #expire} periodically; anything may call {@link #schedule}.
+ * Deadlines are in {@link System#nanoTime} units and are honored to the precision of one tick.
+ */
+final class TimerWheel<T> {
+
+    /**
+     * A scheduled item.
+     */
+    static final class Timeout<T> {
+
+        final T item;
+        final long deadline;
+        private volatile boolean cancelled;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        /** Prevents the item from being returned by {@link #expire}, say because it has been rescheduled. */
+        void cancel() {
+            cancelled = true;
+        }
+
+    }
+
+    private final long tickNanos;
+    private final List<Timeout<T>>[] slots;
+    /** Last tick whose slot has been expired. */
+    private volatile long lastTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickNanos, int size, long now) {
+        if (tickNanos <= 0 || size <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.tickNanos = tickNanos;
+        slots = new List[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        lastTick = Math.floorDiv(now, tickNanos);
+    }
+
+    private List<Timeout<T>> slot(long tick) {
+        return slots[(int) Math.floorMod(tick, (long) slots.length)];
+    }
+
+    /**
+     * Schedules an item.
+     * @param deadline when it should be returned from {@link #expire}; if already past, it will be on the next tick
+     * @return a handle which may be used to cancel it
+     */
+    Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> timeout = new Timeout<>(item, deadline);
+        while (true) {
+            long tick = Math.max(Math.floorDiv(deadline, tickNanos), lastTick + 1);
+            List<Timeout<T>> slot = slot(tick);
+            synchronized (slot) {
+                if (tick > lastTick) { // otherwise expire just went past this slot, so try the next one
+                    slot.add(timeout);
+                    return timeout;
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel to the current time.
+     * @return items whose deadline falls in a tick which has now passed, excluding any cancelled
+     */
+    List<T> expire(long now) {
+        List<T> due = new ArrayList<>();
+        long currentTick = Math.floorDiv(now, tickNanos);
+        long from = Math.max(lastTick + 1, currentTick - slots.length + 1); // after a long pause, every slot once
+        for (long tick = from; tick <= currentTick; tick++) {
+            List<Timeout<T>> slot = slot(tick);
+            synchronized (slot) {
+                lastTick = tick;
+                int kept = 0;
+                for (int i = 0; i < slot.size(); i++) {
+                    Timeout<T> timeout = slot.get(i);
+                    if (timeout.cancelled) {
+                        continue;
+                    }
+                    if (Math.floorDiv(timeout.deadline, tickNanos) <= currentTick) {
+                        due.add(timeout.item);
+                    } else { // due in a later rotation of the wheel
+                        slot.set(kept++, timeout);
+                    }
+                }
+                slot.subList(kept, slot.size()).clear();
+            }
+        }
+        return due;
+    }
+
+}
@@ -0,0 +1,492 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Converts process output from some charset to UTF-8 in chunks, reusing its buffers.
+ * A multibyte sequence cut off at the end of a chunk is held back rather than garbled,
+ * so the caller may resume reading the file from {@linkplain #transcode(FileChannel, long, long, boolean, OutputStream) that offset}.
+ * Runs of ASCII are copied as is when the charset encodes ASCII the same way UTF-8 does.
+ * Malformed and unmappable input is replaced, as with {@link Charset#decode}.
+ * For stateful charsets, such as EBCDIC mixed code pages shifting in and out of double-byte mode or ISO-2022 encodings,
+ * the decoder is put back into the right state when resuming at an offset; see {@link #resume}.
+ * Not thread-safe.
+ */
+final class Transcoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** How far past an ASCII-range byte a multibyte character might continue (as in GB18030). */
+    private static final int MAX_ASCII_IN_CHARACTER = 3;
+
+    /** Maximum number of idle instances kept for each charset. */
+    private static final int POOL_SIZE = 8;
+
+    /** How far {@link #resume} looks back for shift and escape sequences. */
+    private static final int MAX_SHIFT_LOOKBACK = 64 * 1024;
+
+    private static final byte SO = 0x0E;
+    private static final byte SI = 0x0F;
+    private static final byte ESC = 0x1B;
+
+    private static final Map<Charset, Queue<Transcoder>> pool = new ConcurrentHashMap<>();
+
+    /**
+     * Gets an instance, perhaps a pooled one.
+     * Call {@link #release} when done.
+     */
+    static Transcoder obtain(Charset cs) {
+        Queue<Transcoder> idle = pool.get(cs);
+        Transcoder transcoder = idle != null ? idle.poll() : null;
+        return transcoder != null ? transcoder : new Transcoder(cs);
+    }
+
+    private final Charset cs;
+    private final boolean asciiCompatible;
+    /** Whether the charset switches between single- and double-byte modes with SO and SI, as IBM-930 and IBM-939 do. */
+    private final boolean shifts;
+    /** Whether the charset designates character sets with escape sequences, as ISO-2022 encodings do. */
+    private final boolean escapes;
+    /** Escape sequences found by {@link #resume}, by graphic set G0–G3. */
+    private final byte[][] designations = new byte[4][];
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer utf8 = ByteBuffer.allocate(BUFFER_SIZE * 3);
+    /** Output of {@link #stream} not yet read. */
+    private final Output output = new Output();
+    private final TranscodingStream stream = new TranscodingStream();
+
+    Transcoder(Charset cs) {
+        this.cs = cs;
+        decoder = cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        asciiCompatible = isAsciiCompatible(cs);
+        shifts = usesShifts(cs);
+        escapes = cs.name().contains("2022");
+        reset();
+    }
+
+    /**
+     * Whether SO and SI switch modes without themselves being characters.
+     */
+    static boolean usesShifts(Charset cs) {
+        try {
+            return cs.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(new byte[] {SO, SI})).remaining() == 0;
+        } catch (CharacterCodingException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether a byte in the range 0–127 may always be taken to be the corresponding ASCII character (at a character boundary).
+     * Not so for EBCDIC or UTF-16, say, nor for ISO-2022 encodings, which switch modes using escape sequences.
+     */
+    static boolean isAsciiCompatible(Charset cs) {
+        if (cs.name().contains("2022")) {
+            return false;
+        }
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        try {
+            CharBuffer decoded = cs.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(ascii));
+            if (decoded.remaining() != ascii.length) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length; i++) {
+                if (decoded.get(i) != i) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (CharacterCodingException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns this instance to the pool.
+     */
+    void release() {
+        reset();
+        Queue<Transcoder> idle = pool.computeIfAbsent(cs, k -> new ConcurrentLinkedQueue<>());
+        if (idle.size() < POOL_SIZE) {
+            idle.offer(this);
+        }
+    }
+
+    private void reset() {
+        decoder.reset();
+        encoder.reset();
+        chars.clear();
+        utf8.clear();
+        input.clear();
+        input.flip();
+    }
+
+    /**
+     * Transcodes part of a file.
+     * @param start offset of the first byte to read
+     * @param end offset after the last byte to read
+     * @param endOfInput true if the file is complete, in which case a trailing incomplete character is replaced rather than held back
+     * @param out where to write UTF-8
+     * @return offset after the last complete character read (or where reading stopped if the file was truncated)
+     */
+    long transcode(FileChannel ch, long start, long end, boolean endOfInput, OutputStream out) throws IOException {
+        reset();
+        resume(ch, start);
+        long position = start;
+        input.clear();
+        while (position < end) {
+            input.limit(input.position() + (int) Math.min(input.remaining(), end - position));
+            int read = ch.read(input, position);
+            if (read <= 0) { // truncated in the meantime
+                break;
+            }
+            position += read;
+            input.flip();
+            transcode(input, out);
+            input.compact();
+        }
+        input.flip();
+        if (endOfInput) {
+            finish(input, out);
+        }
+        return position - input.remaining();
+    }
+
+    /**
+     * Offers a stream of transcoded output.
+     * @param raw input in the source charset, from the start of the file; not closed
+     * @param endOfInput true if {@code raw} will reach the end of the process output, in which case a trailing incomplete character is replaced rather than held back
+     * @return UTF-8, valid until the next call to this instance; afterwards see {@link #pending}
+     */
+    InputStream transcode(InputStream raw, boolean endOfInput) {
+        reset();
+        return stream(raw, endOfInput);
+    }
+
+    /**
+     * Offers a stream of transcoded output from partway through a file.
+     * @param raw input in the source charset, starting at {@code start}; not closed
+     * @param endOfInput as in {@link #transcode(InputStream, boolean)}
+     * @param ch the file being read, to look for shift sequences before {@code start}
+     * @param start offset in the file at which {@code raw} starts
+     * @return UTF-8, valid until the next call to this instance; afterwards see {@link #pending}
+     */
+    InputStream transcode(InputStream raw, boolean endOfInput, FileChannel ch, long start) throws IOException {
+        reset();
+        resume(ch, start);
+        return stream(raw, endOfInput);
+    }
+
+    private InputStream stream(InputStream raw, boolean endOfInput) {
+        stream.raw = raw;
+        stream.endOfInput = endOfInput;
+        stream.served = 0;
+        stream.eof = false;
+        output.reset();
+        return stream;
+    }
+
+    /**
+     * What {@link #transcode(InputStream, boolean)} returns; reused, so only valid until the next call.
+     */
+    private final class TranscodingStream extends InputStream {
+        InputStream raw;
+        boolean endOfInput;
+        int served;
+        boolean eof;
+        @Override public int read() throws IOException {
+            return fill() ? output.buf()[served++] & 0xFF : -1;
+        }
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, output.size() - served);
+            System.arraycopy(output.buf(), served, b, off, n);
+            served += n;
+            return n;
+        }
+        @Override public int available() {
+            return output.size() - served;
+        }
+        /** @return true unless at the end */
+        private boolean fill() throws IOException {
+            while (served == output.size()) {
+                if (eof) {
+                    return false;
+                }
+                output.reset();
+                served = 0;
+                input.compact();
+                int read = raw.read(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                if (read == -1) {
+                    eof = true;
+                    input.flip();
+                    if (endOfInput) {
+                        finish(input, output);
+                    }
+                } else {
+                    input.position(input.position() + read);
+                    input.flip();
+                    transcode(input, output);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Puts the decoder into the state it would have been in at an offset, had it read the file from the start,
+     * by replaying the latest SO or SI and the latest designation escape sequences before that offset.
+     * Such sequences only ever mean one thing in the charsets concerned, so they can be found without decoding anything.
+     * Assumes the initial state if none are found within {@link #MAX_SHIFT_LOOKBACK} bytes,
+     * so a double-byte run or a designation of G1–G3 which began further back than that would still be misread.
+     * (That is rare, as output is conventionally shifted back to single bytes or ASCII before the end of each line.)
+     * Stateful charsets signalled otherwise, such as UTF-16 with a byte order mark, are not handled.
+     */
+    private void resume(FileChannel ch, long start) throws IOException {
+        if (!shifts && !escapes || start == 0) {
+            return;
+        }
+        Arrays.fill(designations, null);
+        byte shift = 0;
+        int[] following = {-1, -1, -1}; // bytes after the one being looked at, enough to hold the rest of any escape sequence
+        long floor = Math.max(0, start - MAX_SHIFT_LOOKBACK);
+        long position = start;
+        byte[] array = input.array();
+        scan: while (position > floor) {
+            int n = (int) Math.min(input.capacity(), position - floor);
+            long blockStart = position - n;
+            input.clear();
+            input.limit(n);
+            while (input.hasRemaining()) {
+                if (ch.read(input, blockStart + input.position()) <= 0) { // truncated in the meantime
+                    break scan;
+                }
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                byte b = array[i];
+                if (shifts && shift == 0 && (b == SO || b == SI)) {
+                    shift = b;
+                } else if (escapes && b == ESC) {
+                    designation(following);
+                }
+                following[2] = following[1];
+                following[1] = following[0];
+                following[0] = b & 0xFF;
+                if ((!shifts || shift != 0) && (!escapes || designations[0] != null)) {
+                    break scan;
+                }
+            }
+            position = blockStart;
+        }
+        input.clear();
+        for (byte[] designation : designations) {
+            if (designation != null) {
+                input.put(designation);
+            }
+        }
+        if (shift == SO) {
+            input.put(SO);
+        }
+        input.flip();
+        decoder.decode(input, chars, false);
+        chars.clear(); // should be nothing, but anyway this is not new output
+        input.clear();
+        input.flip();
+    }
+
+    /**
+     * Records an escape sequence found by {@link #resume}, if it designates a graphic set and no later one has been found for that set.
+     * @param following the bytes after {@link #ESC}, or -1 past the point at which the search started
+     */
+    private void designation(int[] following) {
+        int intermediates = 0;
+        while (intermediates < following.length && following[intermediates] >= 0x20 && following[intermediates] <= 0x2F) {
+            intermediates++;
+        }
+        if (intermediates == 0 || intermediates == following.length || following[intermediates] < 0x30 || following[intermediates] > 0x7E) {
+            return; // not a designation, or cut off
+        }
+        int set;
+        switch (following[intermediates - 1]) {
+            case '(':
+            case '$': // ESC $ F is short for ESC $ ( F
+                set = 0;
+                break;
+            case ')':
+            case '-':
+                set = 1;
+                break;
+            case '*':
+            case '.':
+                set = 2;
+                break;
+            case '+':
+            case '/':
+                set = 3;
+                break;
+            default:
+                return;
+        }
+        if (designations[set] == null) {
+            byte[] sequence = new byte[intermediates + 2];
+            sequence[0] = ESC;
+            for (int i = 0; i <= intermediates; i++) {
+                sequence[i + 1] = (byte) following[i];
+            }
+            designations[set] = sequence;
+        }
+    }
+
+    /**
+     * Number of bytes read by the last {@link #transcode(InputStream, boolean)} stream which were held back as an incomplete character.
+     */
+    int pending() {
+        return input.remaining();
+    }
+
+    /**
+     * Transcodes all complete characters available in a buffer.
+     * @param in input in the source charset; on return, positioned after the last complete character
+     * @param out where to write UTF-8
+     */
+    void transcode(ByteBuffer in, OutputStream out) throws IOException {
+        if (!asciiCompatible || !in.hasArray()) {
+            decode(in, out, false);
+            return;
+        }
+        byte[] array = in.array();
+        int offset = in.arrayOffset();
+        int limit = in.limit();
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int i = start;
+            while (i < limit && array[offset + i] >= 0) {
+                i++;
+            }
+            if (i > start) { // ASCII is the same in UTF-8
+                out.write(array, offset + start, i - start);
+                in.position(i);
+                continue;
+            }
+            while (i < limit && array[offset + i] < 0) {
+                i++;
+            }
+            in.limit(i); // decode up to the next ASCII run
+            decode(in, out, false);
+            in.limit(limit);
+            if (in.position() == start) { // the byte at i must belong to a multibyte character, as Shift_JIS trail bytes may
+                in.limit(Math.min(limit, i + MAX_ASCII_IN_CHARACTER));
+                decode(in, out, false);
+                in.limit(limit);
+                if (in.position() == start) {
+                    decode(in, out, false);
+                    if (in.position() == start) { // incomplete character at the end
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void decode(ByteBuffer in, OutputStream out, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = decoder.decode(in, chars, endOfInput);
+            encode(out, false);
+            if (result.isUnderflow()) {
+                return;
+            }
+        }
+    }
+
+    private void finish(ByteBuffer in, OutputStream out) throws IOException {
+        decode(in, out, true);
+        while (decoder.flush(chars).isOverflow()) {
+            encode(out, false);
+        }
+        encode(out, true);
+        while (encoder.flush(utf8).isOverflow()) {
+            drain(out);
+        }
+        drain(out);
+    }
+
+    private void encode(OutputStream out, boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, utf8, endOfInput); // a high surrogate at the end stays in chars for next time
+            drain(out);
+            if (result.isUnderflow()) {
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    private void drain(OutputStream out) throws IOException {
+        out.write(utf8.array(), 0, utf8.position());
+        utf8.clear();
+    }
+
+    /** Exposes the buffer so it can be served without another copy. */
+    private static final class Output extends ByteArrayOutputStream {
+        Output() {
+            super(BUFFER_SIZE * 3);
+        }
+        byte[] buf() {
+            return buf;
+        }
+    }
+
+}
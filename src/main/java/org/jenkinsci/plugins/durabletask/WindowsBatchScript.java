@@ -29,7 +29,6 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Proc;
 import hudson.model.TaskListener;
 import java.io.IOException;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -80,10 +79,7 @@ public final class WindowsBatchScript extends FileMonitoringTask {
         /* Too noisy, and consumes a thread:
         ps.stdout(listener);
         */
-        ps.readStdout().readStderr(); // TODO see BourneShellScript
-        Proc p = ps.start();
-        c.registerForCleanup(p.getStdout());
-        c.registerForCleanup(p.getStderr());
+        startWrapper(launcher, ps, c);
 
         return c;
     }
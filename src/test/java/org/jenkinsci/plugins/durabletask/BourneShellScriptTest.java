@@ -37,6 +37,7 @@ import hudson.Platform;
 import hudson.Proc;
 import hudson.model.Slave;
 import hudson.plugins.sshslaves.SSHLauncher;
+import hudson.remoting.CallableDecorator;
 import hudson.remoting.Channel;
 import hudson.remoting.VirtualChannel;
 import hudson.slaves.DumbSlave;
@@ -54,15 +55,21 @@ import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.io.output.TeeOutputStream;
 import static org.hamcrest.Matchers.*;
 
@@ -317,6 +324,315 @@ public class BourneShellScriptTest {
         c.cleanup(ws);
     }
 
+    @Test public void writeLogInWindows() throws Exception {
+        long orig = FileMonitoringTask.WRITE_LOG_MAX;
+        FileMonitoringTask.WRITE_LOG_MAX = 100;
+        try {
+            Controller c = new BourneShellScript("set +x; x=0; while [ $x -lt 100 ]; do x=$((x+1)); echo line $x; done").launch(new EnvVars(), ws, launcher, listener);
+            awaitCompletion(c);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            assertTrue(c.writeLog(ws, baos));
+            assertEquals(100, baos.size());
+            assertTrue(c.isMoreLogAvailable());
+            int calls = 1;
+            while (c.isMoreLogAvailable()) {
+                assertTrue(c.writeLog(ws, baos));
+                calls++;
+            }
+            assertFalse(c.writeLog(ws, baos));
+            assertThat(calls, greaterThan(5));
+            String log = baos.toString();
+            assertThat(log, containsString("\nline 1\n"));
+            assertThat(log, endsWith("\nline 100\n"));
+            c.cleanup(ws);
+        } finally {
+            FileMonitoringTask.WRITE_LOG_MAX = orig;
+        }
+    }
+
+    @Test public void compressedTransfers() throws Exception {
+        FileMonitoringTask.COMPRESS_TRANSFERS = true;
+        try {
+            long compressedBefore = FileMonitoringTask.getCompressedBytesReceived();
+            long uncompressedBefore = FileMonitoringTask.getUncompressedBytesReceived();
+            DurableTask task = new BourneShellScript("x=0; while [ $x -lt 100 ]; do x=$((x+1)); echo same old line; echo same old output >&2; done");
+            task.captureOutput();
+            Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+            awaitCompletion(c);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            c.writeLog(ws, baos);
+            assertEquals(0, c.exitStatus(ws, launcher, listener).intValue());
+            assertThat(baos.toString(), containsString("same old output\nsame old output\n"));
+            assertEquals(StringUtils.repeat("same old line\n", 100), new String(c.getOutput(ws, launcher)));
+            long compressed = FileMonitoringTask.getCompressedBytesReceived() - compressedBefore;
+            long uncompressed = FileMonitoringTask.getUncompressedBytesReceived() - uncompressedBefore;
+            assertThat(uncompressed, greaterThan(baos.size() - 1L));
+            assertThat(compressed, lessThan(uncompressed / 3));
+            c.cleanup(ws);
+        } finally {
+            FileMonitoringTask.COMPRESS_TRANSFERS = false;
+        }
+    }
+
+    @Test public void writeLogAndExitStatus() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; for x in 1 2 3; do echo line $x; sleep 1; done");
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int polls = 0;
+        long before = s.getChannel().call(new RoundTrips());
+        Integer status;
+        do {
+            Thread.sleep(100);
+            status = c.writeLogAndExitStatus(ws, baos, launcher, listener);
+            polls++;
+        } while (status == null);
+        long after = s.getChannel().call(new RoundTrips());
+        assertEquals(0, status.intValue());
+        assertEquals("one call per poll", polls, after - before);
+        assertThat(baos.toString(), containsString("line 1\nline 2\nline 3\n"));
+        c.cleanup(ws);
+    }
+
+    @Test public void longPoll() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; sleep 3; echo finished");
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int polls = 0;
+        long start = System.nanoTime();
+        Integer status;
+        do {
+            status = c.writeLogAndExitStatus(ws, baos, launcher, listener, 1, TimeUnit.MINUTES);
+            polls++;
+        } while (status == null);
+        assertEquals(0, status.intValue());
+        assertThat(baos.toString(), containsString("finished\n"));
+        assertThat("returned for output and completion, not on every check", polls, lessThanOrEqualTo(4));
+        assertThat("did not wait out the timeout", System.nanoTime() - start, lessThan(TimeUnit.SECONDS.toNanos(30)));
+        c.cleanup(ws);
+    }
+
+    @Test public void asynchronous() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; for x in 1 2 3; do echo line $x >&2; sleep 1; done; echo result");
+        task.captureOutput();
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Integer status;
+        do {
+            status = c.writeLogAndExitStatusAsync(ws, baos, launcher, listener, 10, TimeUnit.SECONDS).get(1, TimeUnit.MINUTES);
+        } while (status == null);
+        assertEquals(0, status.intValue());
+        assertEquals(0, c.exitStatusAsync(ws, launcher, listener).get().intValue());
+        assertThat(baos.toString(), containsString("line 1\nline 2\nline 3\n"));
+        assertFalse(c.writeLogAsync(ws, baos).get());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        c.getOutputAsync(ws, launcher, output).get();
+        assertEquals("result\n", output.toString());
+        c.cleanupAsync(ws).get();
+        assertFalse(((FileMonitoringTask.FileMonitoringController) c).controlDir(ws).exists());
+    }
+
+    @Test public void bulkWriteLogAndExitStatus() throws Exception {
+        List<FileMonitoringTask.Poll> polls = new ArrayList<>();
+        List<ByteArrayOutputStream> logs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DurableTask task = new BourneShellScript("set +x; for x in 1 2 3; do echo task " + i + " line $x; sleep " + i + "; done; exit " + i);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            logs.add(baos);
+            polls.add(new FileMonitoringTask.Poll(task.launch(new EnvVars(), ws, launcher, listener), ws, launcher, baos));
+        }
+        int cycles = 0;
+        long before = s.getChannel().call(new RoundTrips());
+        boolean done;
+        do {
+            Thread.sleep(100);
+            FileMonitoringTask.writeLogAndExitStatus(polls, listener);
+            cycles++;
+            done = true;
+            for (FileMonitoringTask.Poll poll : polls) {
+                done &= poll.getExitStatus() != null;
+            }
+        } while (!done);
+        long after = s.getChannel().call(new RoundTrips());
+        assertEquals("one call per cycle for all tasks", cycles, after - before);
+        for (int i = 0; i < 3; i++) {
+            FileMonitoringTask.Poll poll = polls.get(i);
+            assertEquals(i, poll.getExitStatus().intValue());
+            assertThat(logs.get(i).toString(), containsString("task " + i + " line 1\ntask " + i + " line 2\ntask " + i + " line 3\n"));
+            poll.getController().cleanup(ws);
+        }
+    }
+
+    /** Counts calls made to the agent via {@link FilePath#act} or directly by {@link FileMonitoringTask}. */
+    private static final class RoundTrips extends MasterToSlaveCallable<Long, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+        private static final AtomicLong count = new AtomicLong();
+        private static boolean installed;
+        @Override public Long call() throws RuntimeException {
+            synchronized (RoundTrips.class) {
+                if (!installed) {
+                    getChannelOrFail().addLocalExecutionInterceptor(new CallableDecorator() {
+                        @Override public <V, T extends Throwable> hudson.remoting.Callable<V, T> userRequest(hudson.remoting.Callable<V, T> op, hudson.remoting.Callable<V, T> stem) {
+                            String name = op.getClass().getName();
+                            if (name.equals(FilePath.class.getName() + "$FileCallableWrapper") || name.startsWith(FileMonitoringTask.class.getName() + "$")) {
+                                count.incrementAndGet();
+                            }
+                            return stem;
+                        }
+                    });
+                    installed = true;
+                }
+            }
+            return count.get();
+        }
+    }
+
+    @Test public void streamedOutput() throws Exception {
+        String script = "i=0; while [ $i -lt 100000 ]; do i=$((i+1)); echo line $i; done";
+        DurableTask task = new BourneShellScript(script);
+        task.captureOutput();
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        awaitCompletion(c);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        c.getOutput(ws, launcher, baos);
+        String output = baos.toString();
+        assertThat(output, startsWith("line 1\nline 2\n"));
+        assertThat(output, endsWith("\nline 100000\n"));
+        assertArrayEquals(baos.toByteArray(), c.getOutput(ws, launcher));
+        c.cleanup(ws);
+        task = new BourneShellScript(script);
+        task.captureOutput();
+        c = task.launch(new EnvVars(), ws, launcher, listener);
+        BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+        BlockingQueue<String> outputSize = new LinkedBlockingQueue<>();
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        c.watch(ws, new StreamingHandler(s.getChannel(), status, outputSize, lines), listener);
+        assertEquals(0, status.take().intValue());
+        assertEquals(Integer.toString(baos.size()), outputSize.take());
+        assertNoZombies();
+    }
+
+    @Test public void watchMultiplexed() throws Exception {
+        List<BlockingQueue<Integer>> statuses = new ArrayList<>();
+        List<StringBuffer> outputs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DurableTask task = new BourneShellScript("set +x; for x in 1 2 3; do echo task " + i + " line $x; sleep 1; done");
+            task.charset(StandardCharsets.UTF_8);
+            Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+            BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+            StringBuffer output = new StringBuffer();
+            statuses.add(status);
+            outputs.add(output);
+            c.watch(ws, OutputMultiplexer.handler(s.getChannel(), new OutputMultiplexer.Receiver() {
+                long lastOffset = -1;
+                @Override public void output(byte[] data, long offset, long end) throws Exception {
+                    assertThat(offset, greaterThan(lastOffset));
+                    assertThat(end, greaterThan(offset));
+                    lastOffset = offset;
+                    output.append(new String(data, StandardCharsets.UTF_8));
+                }
+                @Override public void exited(int code, byte[] captured) throws Exception {
+                    status.add(code);
+                }
+            }), listener);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, statuses.get(i).take().intValue());
+            assertThat(outputs.get(i).toString(), containsString("task " + i + " line 1\ntask " + i + " line 2\ntask " + i + " line 3\n"));
+        }
+        assertNoZombies();
+    }
+
+    @Test public void watchMultiplexedResumes() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; for x in 1 2 3 4 5; do echo line $x; sleep 1; done");
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        StringBuffer received = new StringBuffer();
+        AtomicLong acknowledged = new AtomicLong(-1);
+        BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+        BlockingQueue<String> failed = new LinkedBlockingQueue<>();
+        Handler first = OutputMultiplexer.handler(s.getChannel(), new OutputMultiplexer.Receiver() {
+            @Override public void output(byte[] data, long offset, long end) throws Exception {
+                if (received.toString().contains("line 2")) {
+                    failed.add("simulated failure");
+                    throw new IOException("simulated failure");
+                }
+                received.append(new String(data, StandardCharsets.UTF_8));
+                acknowledged.set(end);
+            }
+            @Override public void exited(int code, byte[] captured) throws Exception {
+                status.add(code);
+            }
+        });
+        c.watch(ws, first, listener);
+        failed.take();
+        assertEquals("master tracks what the receiver accepted", acknowledged.get(), OutputMultiplexer.acknowledged(first));
+        c.watch(ws, OutputMultiplexer.handler(s.getChannel(), new OutputMultiplexer.Receiver() {
+            @Override public void output(byte[] data, long offset, long end) throws Exception {
+                assertEquals("resumes exactly where acknowledged", acknowledged.get(), offset);
+                received.append(new String(data, StandardCharsets.UTF_8));
+                acknowledged.set(end);
+            }
+            @Override public void exited(int code, byte[] captured) throws Exception {
+                status.add(code);
+            }
+        }, OutputMultiplexer.acknowledged(first)), listener);
+        assertEquals(0, status.take().intValue());
+        assertEquals("+ set +x\nline 1\nline 2\nline 3\nline 4\nline 5\n", received.toString());
+        assertNoZombies();
+    }
+
+    @Test public void watchMultiplexedReleasesReceivers() throws Exception {
+        Controller c = new BourneShellScript("set +x; sleep 5; echo done").launch(new EnvVars(), ws, launcher, listener);
+        BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+        OutputMultiplexer.Receiver receiver = new OutputMultiplexer.Receiver() {
+            @Override public void output(byte[] data, long offset, long end) throws Exception {}
+            @Override public void exited(int code, byte[] captured) throws Exception {
+                status.add(code);
+            }
+        };
+        int before = OutputMultiplexer.receivers(s.getChannel());
+        c.watch(ws, OutputMultiplexer.handler(s.getChannel(), receiver), listener);
+        c.watch(ws, OutputMultiplexer.handler(s.getChannel(), receiver), listener); // replaces the first watch
+        while (OutputMultiplexer.receivers(s.getChannel()) > before + 1) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, status.take().intValue());
+        assertEquals("nothing left behind once exited", before, OutputMultiplexer.receivers(s.getChannel()));
+        c.cleanup(ws);
+        assertNoZombies();
+    }
+
+    @Test public void watchMultiplexedSlowReceiver() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Controller slow = new BourneShellScript("set +x; echo slow").launch(new EnvVars(), ws, launcher, listener);
+        BlockingQueue<Integer> slowStatus = new LinkedBlockingQueue<>();
+        slow.watch(ws, OutputMultiplexer.handler(s.getChannel(), new OutputMultiplexer.Receiver() {
+            @Override public void output(byte[] data, long offset, long end) throws Exception {
+                release.await();
+            }
+            @Override public void exited(int code, byte[] captured) throws Exception {
+                slowStatus.add(code);
+            }
+        }), listener);
+        DurableTask task = new BourneShellScript("set +x; sleep 1; echo result");
+        task.captureOutput();
+        Controller fast = task.launch(new EnvVars(), ws, launcher, listener);
+        BlockingQueue<String> captured = new LinkedBlockingQueue<>();
+        fast.watch(ws, OutputMultiplexer.handler(s.getChannel(), new OutputMultiplexer.Receiver() {
+            @Override public void output(byte[] data, long offset, long end) throws Exception {}
+            @Override public void exited(int code, byte[] output) throws Exception {
+                throw new AssertionError("should have been streamed");
+            }
+            @Override public void exitedStreaming(int code, InputStream output) throws Exception {
+                captured.add(code + ":" + IOUtils.toString(output, StandardCharsets.UTF_8));
+            }
+        }), listener);
+        assertEquals("not held up by the other receiver", "0:result\n", captured.poll(1, TimeUnit.MINUTES));
+        assertNull("exit status waits for the output before it", slowStatus.poll());
+        release.countDown();
+        assertEquals(0, slowStatus.take().intValue());
+        assertNoZombies();
+    }
+
     @Issue("JENKINS-38381")
     @Test public void watch() throws Exception {
         DurableTask task = new BourneShellScript("set +x; for x in 1 2 3 4 5; do echo $x; sleep 1; done");
@@ -342,6 +658,88 @@ public class BourneShellScriptTest {
         c.cleanup(ws);
         assertNoZombies();
     }
+
+    @Test public void watchWithFileNotifications() throws Exception {
+        FileMonitoringTask.WATCH_FILE_NOTIFICATIONS = true;
+        long origInterval = FileMonitoringTask.WATCH_FALLBACK_POLL_INTERVAL;
+        FileMonitoringTask.WATCH_FALLBACK_POLL_INTERVAL = 60_000; // so that only notifications could deliver output promptly
+        try {
+            DurableTask task = new BourneShellScript("set +x; for x in 1 2 3; do echo $x; sleep 1; done");
+            Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+            BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+            BlockingQueue<String> output = new LinkedBlockingQueue<>();
+            BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+            long start = System.nanoTime();
+            c.watch(ws, new MockHandler(s.getChannel(), status, output, lines), listener);
+            assertEquals(0, status.take().intValue());
+            assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(30L));
+            assertEquals("<no output>", output.take());
+            assertEquals("[+ set +x, 1, 2, 3]", lines.toString());
+        } finally {
+            FileMonitoringTask.WATCH_FILE_NOTIFICATIONS = false;
+            FileMonitoringTask.WATCH_FALLBACK_POLL_INTERVAL = origInterval;
+        }
+        assertNoZombies();
+    }
+
+    @Test public void watchWithByteBudget() throws Exception {
+        long origBudget = FileMonitoringTask.WATCH_BYTE_BUDGET;
+        FileMonitoringTask.WATCH_BYTE_BUDGET = 1000;
+        try {
+            DurableTask task = new BourneShellScript("set +x; i=0; while [ $i -lt 2000 ]; do i=$((i+1)); echo $i; done");
+            Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+            awaitCompletion(c);
+            BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+            BlockingQueue<String> output = new LinkedBlockingQueue<>();
+            BlockingQueue<String> chunks = new LinkedBlockingQueue<>();
+            c.watch(ws, new ChunkHandler(s.getChannel(), status, output, chunks), listener);
+            assertEquals(0, status.take().intValue());
+            StringBuilder expected = new StringBuilder("+ set +x\n");
+            for (int i = 1; i <= 2000; i++) {
+                expected.append(i).append('\n');
+            }
+            assertEquals(expected.toString(), String.join("", chunks));
+            assertThat(chunks.size(), greaterThan(expected.length() / 1000));
+            for (String chunk : chunks) {
+                assertThat(chunk.length(), lessThanOrEqualTo(1000));
+            }
+        } finally {
+            FileMonitoringTask.WATCH_BYTE_BUDGET = origBudget;
+        }
+        assertNoZombies();
+    }
+
+    @Test public void watchCoalesced() throws Exception {
+        int uncoalesced = watchChunks();
+        long origBytes = FileMonitoringTask.WATCH_COALESCE_BYTES;
+        long origDelay = FileMonitoringTask.WATCH_COALESCE_DELAY;
+        FileMonitoringTask.WATCH_COALESCE_BYTES = 1024 * 1024;
+        FileMonitoringTask.WATCH_COALESCE_DELAY = 1000;
+        try {
+            int coalesced = watchChunks();
+            System.err.println("deliveries: " + uncoalesced + " uncoalesced vs. " + coalesced + " coalesced");
+            assertThat(coalesced, lessThan(uncoalesced));
+            assertThat("held back at most a second at a time over about three seconds", coalesced, lessThanOrEqualTo(5));
+        } finally {
+            FileMonitoringTask.WATCH_COALESCE_BYTES = origBytes;
+            FileMonitoringTask.WATCH_COALESCE_DELAY = origDelay;
+        }
+        assertNoZombies();
+    }
+
+    /** Watches a process printing a line every few milliseconds, and counts the calls to {@link Handler#output}. */
+    private int watchChunks() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; i=0; while [ $i -lt 100 ]; do i=$((i+1)); echo $i; sleep 0.03; done");
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        BlockingQueue<String> chunks = new LinkedBlockingQueue<>();
+        c.watch(ws, new ChunkHandler(s.getChannel(), status, output, chunks), listener);
+        assertEquals(0, status.take().intValue());
+        assertThat(String.join("", chunks), endsWith("\n99\n100\n"));
+        return chunks.size();
+    }
+
     static class MockHandler extends Handler {
         final BlockingQueue<Integer> status;
         final BlockingQueue<String> output;
@@ -361,6 +759,103 @@ public class BourneShellScriptTest {
         }
     }
 
+    @Test public void watchRetries() throws Exception {
+        long origDelay = FileMonitoringTask.WATCH_RETRY_DELAY;
+        FileMonitoringTask.WATCH_RETRY_DELAY = 100;
+        try {
+            DurableTask task = new BourneShellScript("set +x; sleep 1; echo hello; sleep 1; echo world");
+            Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+            BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+            BlockingQueue<String> output = new LinkedBlockingQueue<>();
+            BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+            c.watch(ws, new FlakyHandler(s.getChannel(), status, output, lines, 2, new IOException("transient")), listener);
+            assertEquals(0, status.take().intValue());
+            assertEquals("[+ set +x, hello, world]", lines.toString());
+        } finally {
+            FileMonitoringTask.WATCH_RETRY_DELAY = origDelay;
+        }
+        assertNoZombies();
+    }
+
+    @Test public void watchGivesUpOnRejection() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; echo hello; sleep 60");
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        BlockingQueue<Integer> status = new LinkedBlockingQueue<>();
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        c.watch(ws, new FlakyHandler(s.getChannel(), status, output, lines, Integer.MAX_VALUE, new IllegalStateException("rejected")), listener);
+        while (c.getWatchState(ws) != Controller.WatchState.DEAD) {
+            Thread.sleep(100);
+        }
+        assertThat(c.getDiagnostics(ws, launcher), containsString("watch dead"));
+        assertEquals("[]", lines.toString());
+        c.stop(ws, launcher);
+        awaitCompletion(c);
+        c.cleanup(ws);
+        assertNull(c.getWatchState(ws));
+        assertNoZombies();
+    }
+
+    @Test public void watchMultiplexedGivesUpOnRejection() throws Exception {
+        DurableTask task = new BourneShellScript("set +x; while true; do echo hello; sleep 1; done");
+        Controller c = task.launch(new EnvVars(), ws, launcher, listener);
+        c.watch(ws, OutputMultiplexer.handler(s.getChannel(), new OutputMultiplexer.Receiver() {
+            @Override public void output(byte[] data, long offset, long end) throws Exception {
+                throw new IllegalStateException("rejected");
+            }
+            @Override public void exited(int code, byte[] captured) throws Exception {}
+        }), listener);
+        long start = System.nanoTime();
+        while (c.getWatchState(ws) != Controller.WatchState.DEAD) {
+            assertThat("not retried", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(15L));
+            Thread.sleep(100);
+        }
+        assertThat(c.getDiagnostics(ws, launcher), containsString("watch dead"));
+        c.stop(ws, launcher);
+        awaitCompletion(c);
+        c.cleanup(ws);
+        assertNoZombies();
+    }
+
+    /** Fails a given number of times before accepting output. */
+    static class FlakyHandler extends MockHandler {
+        private int failures;
+        private final Exception failure;
+        FlakyHandler(VirtualChannel channel, BlockingQueue<Integer> status, BlockingQueue<String> output, BlockingQueue<String> lines, int failures, Exception failure) {
+            super(channel, status, output, lines);
+            this.failures = failures;
+            this.failure = failure;
+        }
+        @Override public void output(InputStream stream) throws Exception {
+            if (failures > 0) {
+                failures--;
+                throw failure;
+            }
+            super.output(stream);
+        }
+    }
+
+    /** Records each batch of output in {@link #lines} as is, without splitting it into lines. */
+    static class ChunkHandler extends MockHandler {
+        ChunkHandler(VirtualChannel channel, BlockingQueue<Integer> status, BlockingQueue<String> output, BlockingQueue<String> chunks) {
+            super(channel, status, output, chunks);
+        }
+        @Override public void output(InputStream stream) throws Exception {
+            lines.add(IOUtils.toString(stream, StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Reports only the size of captured output in {@link #output}, without holding it all in memory. */
+    static class StreamingHandler extends MockHandler {
+        StreamingHandler(VirtualChannel channel, BlockingQueue<Integer> status, BlockingQueue<String> outputSize, BlockingQueue<String> lines) {
+            super(channel, status, outputSize, lines);
+        }
+        @Override public void exitedStreaming(int code, InputStream stream) throws Exception {
+            status.add(code);
+            output.add(stream != null ? Long.toString(IOUtils.copyLarge(stream, new NullOutputStream())) : "<no output>");
+        }
+    }
+
     @Issue("JENKINS-40734")
     @Test public void envWithShellChar() throws Exception {
         Controller c = new BourneShellScript("echo \"value=$MYNEWVAR\"").launch(new EnvVars("MYNEWVAR", "foo$$bar"), ws, launcher, listener);
@@ -372,6 +867,29 @@ public class BourneShellScriptTest {
         c.cleanup(ws);
     }
 
+    @Test public void detachedLaunch() throws Exception {
+        boolean forceBinaryWrapper = BourneShellScript.FORCE_BINARY_WRAPPER;
+        FileMonitoringTask.DETACHED_LAUNCH = true;
+        try {
+            // The script wrapper relies on $$ in the command being expanded, as LocalLauncher would.
+            for (boolean binary : new boolean[] {forceBinaryWrapper, false}) {
+                BourneShellScript.FORCE_BINARY_WRAPPER = binary;
+                Controller c = new BourneShellScript("echo \"value=$MYNEWVAR\"; sleep 2").launch(new EnvVars("MYNEWVAR", "foo$$bar"), ws, launcher, listener);
+                // Even before cleanup, nothing should be exported for the wrapper's streams.
+                assertNoProcessPipeInputStreamInRemoteExportTable();
+                awaitCompletion(c);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                c.writeLog(ws, baos);
+                assertEquals("binary=" + binary, 0, c.exitStatus(ws, launcher, listener).intValue());
+                assertThat(baos.toString(), containsString("value=foo$$bar"));
+                c.cleanup(ws);
+            }
+        } finally {
+            FileMonitoringTask.DETACHED_LAUNCH = false;
+            BourneShellScript.FORCE_BINARY_WRAPPER = forceBinaryWrapper;
+        }
+    }
+
     @Test public void shebang() throws Exception {
         ExtensionList.lookupSingleton(Shell.DescriptorImpl.class).setShell("/bin/false"); // Should be overridden
         Controller c = new BourneShellScript("#!/bin/cat\nHello, world!").launch(new EnvVars(), ws, launcher, listener);
@@ -477,6 +995,64 @@ public class BourneShellScriptTest {
         assertNoZombies();
     }
 
+    @Test public void agentInfoCached() throws Exception {
+        BourneShellScript script = new BourneShellScript("true");
+        int lookups = s.getChannel().call(new AgentInfoLookups());
+        long[] calls = new long[3];
+        for (int i = 0; i < calls.length; i++) {
+            long before = s.getChannel().call(new RoundTrips());
+            long start = System.nanoTime();
+            Controller c = script.launch(new EnvVars(), ws, launcher, listener);
+            long elapsed = System.nanoTime() - start;
+            calls[i] = s.getChannel().call(new RoundTrips()) - before;
+            System.err.printf("launch #%d made %d calls in %.1fms%n", i + 1, calls[i], elapsed / 1e6);
+            awaitCompletion(c);
+            c.cleanup(ws);
+        }
+        assertEquals("agent info looked up only once", lookups + 1, s.getChannel().call(new AgentInfoLookups()).intValue());
+        assertEquals("all file setup done in one call", 1, calls[2]);
+        long cacheSeconds = BourneShellScript.AGENT_INFO_CACHE_SECONDS;
+        BourneShellScript.AGENT_INFO_CACHE_SECONDS = 1;
+        try {
+            Thread.sleep(1500);
+            Controller c = script.launch(new EnvVars(), ws, launcher, listener);
+            awaitCompletion(c);
+            c.cleanup(ws);
+            assertEquals("looked up again once expired", lookups + 2, s.getChannel().call(new AgentInfoLookups()).intValue());
+        } finally {
+            BourneShellScript.AGENT_INFO_CACHE_SECONDS = cacheSeconds;
+        }
+    }
+
+    private static final class AgentInfoLookups extends MasterToSlaveCallable<Integer, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+        @Override public Integer call() throws RuntimeException {
+            return BourneShellScript.agentInfoLookups();
+        }
+    }
+
+    @Test public void warmUp() throws Exception {
+        BourneShellScript.WARM_UP = true;
+        try {
+            s.toComputer().disconnect(null).get();
+            s.toComputer().connect(false).get();
+            ws = s.getWorkspaceRoot().child("ws");
+            launcher = s.createLauncher(listener);
+            String version = StringUtils.substringBefore(j.getPluginManager().getPlugin("durable-task").getVersion(), "-");
+            String key = BourneShellScript.class.getName() + "$AgentInfo:" + version + ":" + s.getRootPath().getRemote();
+            while (((Channel) s.getChannel()).getProperty(key) == null) {
+                Thread.sleep(100);
+            }
+            long before = s.getChannel().call(new RoundTrips());
+            Controller c = new BourneShellScript("true").launch(new EnvVars(), ws, launcher, listener);
+            assertEquals("first launch needs no more than later ones", 1, s.getChannel().call(new RoundTrips()) - before);
+            awaitCompletion(c);
+            c.cleanup(ws);
+        } finally {
+            BourneShellScript.WARM_UP = false;
+        }
+    }
+
     @Test public void binaryCaching() throws Exception {
         assumeTrue(!Objects.equals(System.getenv().get("SKIP_DURABLE_TASK_BINARY_GENERATION"), "true") && !platform.equals(TestPlatform.UBUNTU_NO_BINARY));
         String os;
@@ -512,15 +1088,14 @@ public class BourneShellScriptTest {
         Long timeCheck2 = binaryPath.lastModified();
         assertEquals(timeCheck1, timeCheck2);
 
+        long size = binaryPath.length();
         binaryPath.delete();
         binaryPath.touch(Instant.now().toEpochMilli());
-        try {
-            c = script.launch(envVars, ws, launcher, listener);
-            fail("binary was copied over");
-        } catch (Exception e) {
-            assertThat(e, instanceOf(IOException.class));
-            assertThat(e.getMessage(), containsString("Cannot run program"));
-        }
+        c = script.launch(envVars, ws, launcher, listener);
+        awaitCompletion(c);
+        assertEquals("truncated binary was replaced", 0, c.exitStatus(ws, launcher, listener).intValue());
+        assertEquals(size, binaryPath.length());
+        assertEquals("no temporary files left behind", 1, binaryPath.getParent().list().size());
     }
 
     /**
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FileMonitoringTaskTest {
+
+    @Test public void idleWatcherBacksOff() {
+        FileMonitoringTask.PollBackoff backoff = new FileMonitoringTask.PollBackoff(100, 5000, 1.5);
+        assertEquals(100, backoff.next(true));
+        long idle = TimeUnit.MINUTES.toMillis(10);
+        long elapsed = 0;
+        int wakeups = 0;
+        while (elapsed < idle) {
+            elapsed += backoff.next(false);
+            wakeups++;
+        }
+        assertThat("a fixed 100ms poll would have woken up 6000 times", wakeups, lessThan(150));
+        assertEquals(5000, backoff.next(false));
+        assertEquals("resumes fast polling as soon as output appears", 100, backoff.next(true));
+        assertEquals(150, backoff.next(false));
+    }
+
+    @Test public void defaultBackoff() {
+        FileMonitoringTask.PollBackoff backoff = new FileMonitoringTask.PollBackoff(FileMonitoringTask.WATCH_MIN_POLL_INTERVAL, FileMonitoringTask.WATCH_MAX_POLL_INTERVAL, FileMonitoringTask.WATCH_POLL_BACKOFF);
+        long idle = TimeUnit.MINUTES.toMillis(10);
+        long elapsed = 0;
+        int wakeups = 0;
+        while (elapsed < idle) {
+            elapsed += backoff.next(false);
+            wakeups++;
+        }
+        assertThat(wakeups, lessThan((int) (idle / FileMonitoringTask.WATCH_MIN_POLL_INTERVAL / 5)));
+    }
+
+    @Test public void virtualThreadsOnlyWhereSupported() throws Exception {
+        String version = System.getProperty("java.specification.version");
+        boolean supported = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        ExecutorService executor = FileMonitoringTask.newVirtualThreadExecutor();
+        if (!supported) {
+            assertNull(executor);
+            return;
+        }
+        assertNotNull(executor);
+        try {
+            String thread = executor.submit(() -> Thread.currentThread().toString()).get();
+            assertThat(thread, allOf(startsWith("VirtualThread"), containsString("FileMonitoringTask watcher")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    @Test public void expiresOnlyDueItems() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 45);
+        wheel.schedule("c", 45);
+        assertEquals(Collections.emptyList(), wheel.expire(15));
+        assertEquals(Collections.singletonList("a"), wheel.expire(29));
+        assertEquals(Collections.emptyList(), wheel.expire(35));
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")), new HashSet<>(wheel.expire(40)));
+        assertEquals(Collections.emptyList(), wheel.expire(100));
+    }
+
+    @Test public void laterRotations() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8, 0);
+        wheel.schedule("far", 250); // more than three turns of the wheel away
+        for (long now = 10; now < 250; now += 10) {
+            assertEquals("at " + now, Collections.emptyList(), wheel.expire(now));
+        }
+        assertEquals(Collections.singletonList("far"), wheel.expire(250));
+    }
+
+    @Test public void cancel() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8, 0);
+        TimerWheel.Timeout<String> old = wheel.schedule("x", 30);
+        old.cancel();
+        wheel.schedule("x", 60);
+        assertEquals(Collections.emptyList(), wheel.expire(50));
+        assertEquals(Collections.singletonList("x"), wheel.expire(60));
+    }
+
+    @Test public void pastDeadlines() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8, 0);
+        wheel.expire(100);
+        wheel.schedule("late", 20);
+        assertEquals("never lost in a slot already passed", Collections.singletonList("late"), wheel.expire(110));
+    }
+
+    @Test public void longPause() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8, 0);
+        wheel.schedule("a", 30);
+        wheel.schedule("b", 70);
+        wheel.schedule("c", 5000);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(wheel.expire(1000)));
+        assertEquals(Collections.singletonList("c"), wheel.expire(5000));
+    }
+
+    @Test public void manyItems() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(10, 64, 0);
+        for (int i = 0; i < 10_000; i++) {
+            wheel.schedule(i, i + 10);
+        }
+        int expired = 0;
+        for (long now = 0; now <= 10_010; now += 10) {
+            int count = wheel.expire(now).size();
+            assertTrue("at most one tick worth at " + now, count <= 10);
+            expired += count;
+        }
+        assertEquals(10_000, expired);
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.durabletask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TranscoderTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String[] CHARSETS = {"UTF-8", "windows-1252", "ISO-8859-2", "Shift_JIS", "EUC-JP", "GB18030", "Big5", "IBM1047", "IBM037", "UTF-16LE", "ISO-2022-JP"};
+
+    private static final String TEXT = "¡Ole! Čau → there! 日本語のログ出力: ソ表ァ 𝄞 and plain ASCII\n";
+
+    @Test public void charactersSplitAcrossChunks() throws Exception {
+        for (String charset : CHARSETS) {
+            Charset cs = Charset.forName(charset);
+            byte[] data = TEXT.getBytes(cs);
+            for (int chunk = 1; chunk <= 7; chunk++) {
+                assertEquals(charset + " in chunks of " + chunk, new String(data, cs), transcode(cs, data, chunk));
+            }
+        }
+    }
+
+    /** Unlike {@link #charactersSplitAcrossChunks}, starts afresh from a file offset each time, as {@code WriteLog} and watchers do. */
+    @Test public void resumedAtOffsets() throws Exception {
+        List<String> charsets = new ArrayList<>(Arrays.asList(CHARSETS));
+        charsets.addAll(Arrays.asList("x-IBM930", "x-IBM939", "ISO-2022-KR"));
+        for (String charset : charsets) {
+            if (!Charset.isSupported(charset)) {
+                continue;
+            }
+            Charset cs = Charset.forName(charset);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 3; i++) {
+                text.append(TEXT).append("한국어 ");
+            }
+            byte[] data = text.toString().getBytes(cs);
+            String expected = new String(data, cs);
+            File f = tmp.newFile();
+            Files.write(f.toPath(), data);
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                for (int chunk = 1; chunk <= 7; chunk++) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    long position = 0;
+                    long limit = chunk;
+                    while (position < data.length) {
+                        long end = Math.min(limit, data.length);
+                        long next = new Transcoder(cs).transcode(ch, position, end, end == data.length, out);
+                        if (next == position) { // not even one complete character yet
+                            limit++;
+                        } else {
+                            position = next;
+                            limit = position + chunk;
+                        }
+                    }
+                    assertEquals(charset + " from a file in chunks of " + chunk, expected, out.toString("UTF-8"));
+                    out.reset();
+                    position = 0;
+                    limit = chunk;
+                    while (position < data.length) {
+                        long end = Math.min(limit, data.length);
+                        Transcoder transcoder = new Transcoder(cs);
+                        InputStream raw = new ByteArrayInputStream(data, (int) position, (int) (end - position));
+                        IOUtils.copy(transcoder.transcode(raw, end == data.length, ch, position), out);
+                        long next = end - transcoder.pending();
+                        if (next == position) {
+                            limit++;
+                        } else {
+                            position = next;
+                            limit = position + chunk;
+                        }
+                    }
+                    assertEquals(charset + " as a stream in chunks of " + chunk, expected, out.toString("UTF-8"));
+                }
+            }
+        }
+    }
+
+    @Test public void asciiCompatible() {
+        assertTrue(Transcoder.isAsciiCompatible(Charset.forName("windows-1252")));
+        assertTrue(Transcoder.isAsciiCompatible(Charset.forName("Shift_JIS")));
+        assertTrue(Transcoder.isAsciiCompatible(StandardCharsets.UTF_8));
+        assertFalse(Transcoder.isAsciiCompatible(Charset.forName("IBM1047")));
+        assertFalse(Transcoder.isAsciiCompatible(StandardCharsets.UTF_16LE));
+        assertFalse(Transcoder.isAsciiCompatible(Charset.forName("ISO-2022-JP")));
+    }
+
+    @Test public void stateful() {
+        assumeTrue(Charset.isSupported("x-IBM939"));
+        assertTrue(Transcoder.usesShifts(Charset.forName("x-IBM939")));
+        assertFalse(Transcoder.usesShifts(Charset.forName("IBM1047")));
+        assertFalse(Transcoder.usesShifts(StandardCharsets.UTF_8));
+    }
+
+    @Test public void malformedInput() throws Exception {
+        byte[] data = {'a', (byte) 0xFF, 'b'};
+        assertEquals("a�b", transcode(StandardCharsets.UTF_8, data, 1));
+    }
+
+    @Test public void incompleteCharacterLeftInBuffer() throws Exception {
+        byte[] data = "xé".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer in = ByteBuffer.wrap(data, 0, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Transcoder(StandardCharsets.UTF_8).transcode(in, out);
+        assertEquals("x", out.toString("UTF-8"));
+        assertEquals("the first byte of é is kept for next time", 1, in.remaining());
+    }
+
+    @Test public void file() throws Exception {
+        Charset cs = Charset.forName("Shift_JIS");
+        byte[] data = TEXT.getBytes(cs);
+        File f = tmp.newFile();
+        Files.write(f.toPath(), data);
+        Transcoder transcoder = Transcoder.obtain(cs);
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            int split = TEXT.substring(0, TEXT.indexOf('日')).getBytes(cs).length + 1; // partway into a double-byte character
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long end = transcoder.transcode(ch, 0, split, false, out);
+            assertEquals(split - 1, end);
+            transcoder.transcode(ch, end, data.length, true, out);
+            assertEquals(new String(data, cs), out.toString("UTF-8"));
+        } finally {
+            transcoder.release();
+        }
+        assertSame("pooled", transcoder, Transcoder.obtain(cs));
+    }
+
+    @Test public void stream() throws Exception {
+        Charset cs = Charset.forName("GB18030");
+        byte[] data = "日本".getBytes(cs);
+        Transcoder transcoder = new Transcoder(cs);
+        InputStream partial = transcoder.transcode(new ByteArrayInputStream(data, 0, data.length - 1), false);
+        assertEquals("日", IOUtils.toString(partial, StandardCharsets.UTF_8));
+        assertEquals(1, transcoder.pending());
+        InputStream last = transcoder.transcode(new ByteArrayInputStream(data, 0, data.length - 1), true);
+        assertEquals("日�", IOUtils.toString(last, StandardCharsets.UTF_8));
+        assertEquals(0, transcoder.pending());
+    }
+
+    /** Feeds data in fixed-size chunks, as {@code WriteLog} would if cut off at various points. */
+    private static String transcode(Charset cs, byte[] data, int chunk) throws Exception {
+        Transcoder transcoder = new Transcoder(cs);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        int position = 0;
+        while (position < data.length) {
+            int n = Math.min(chunk, data.length - position);
+            buf.put(data, position, n);
+            position += n;
+            buf.flip();
+            transcoder.transcode(buf, out);
+            buf.compact();
+        }
+        assertEquals("nothing left over", 0, buf.position());
+        return out.toString("UTF-8");
+    }
+
+}